@@ -27,6 +27,9 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 
+import com.noisepages.nettoyeur.common.ByteRingBuffer;
+import com.noisepages.nettoyeur.common.CoalescingOutputStream;
+import com.noisepages.nettoyeur.common.InputStreamPump;
 import com.noisepages.nettoyeur.common.RawByteReceiver;
 
 
@@ -47,6 +50,8 @@ public class BluetoothSppConnection {
                                                                                                 // change
                                                                                                 // this.
 
+  private static final int DEFAULT_MAX_BUFFER_SIZE = 4096;
+
   public static enum State {
     NONE, CONNECTING, CONNECTED
   }
@@ -55,21 +60,46 @@ public class BluetoothSppConnection {
   private final BluetoothSppObserver sppObserver;
   private final RawByteReceiver sppReceiver;
   private final int bufferSize;
+  private final int maxBufferSize;
   private volatile State connectionState = State.NONE;
   private ConnectThread connectThread = null;
   private ConnectedThread connectedThread = null;
+  private int queueCapacity = 0; // Zero unless writes are queued.
+  private ByteRingBuffer.OverflowPolicy queuePolicy;
+  private int queueDelayMillis;
 
   /**
-   * Constructor.
+   * Constructor. The input buffer grows as needed, up to 4096 bytes or the given buffer size,
+   * whichever is larger.
    * 
    * @param observer handling Bluetooth-related events
    * @param receiver handling incoming data from Bluetooth
-   * @param bufferSize buffer size for the input stream
+   * @param bufferSize initial buffer size for the input stream
    * @throws BluetoothUnavailableException
    * @throws BluetoothDisabledException
    */
   public BluetoothSppConnection(BluetoothSppObserver observer, RawByteReceiver receiver,
       int bufferSize) throws BluetoothUnavailableException, BluetoothDisabledException {
+    this(observer, receiver, bufferSize, Math.max(bufferSize, DEFAULT_MAX_BUFFER_SIZE));
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param observer handling Bluetooth-related events
+   * @param receiver handling incoming data from Bluetooth
+   * @param bufferSize initial buffer size for the input stream
+   * @param maxBufferSize maximum buffer size for the input stream; the buffer grows when bursts of
+   *        incoming data fill it
+   * @throws BluetoothUnavailableException
+   * @throws BluetoothDisabledException
+   */
+  public BluetoothSppConnection(BluetoothSppObserver observer, RawByteReceiver receiver,
+      int bufferSize, int maxBufferSize) throws BluetoothUnavailableException,
+      BluetoothDisabledException {
+    if (bufferSize < 1 || maxBufferSize < bufferSize) {
+      throw new IllegalArgumentException("Bad buffer sizes: " + bufferSize + ", " + maxBufferSize);
+    }
     btAdapter = BluetoothAdapter.getDefaultAdapter();
     if (btAdapter == null) {
       throw new BluetoothUnavailableException();
@@ -80,6 +110,7 @@ public class BluetoothSppConnection {
     this.sppObserver = observer;
     this.sppReceiver = receiver;
     this.bufferSize = bufferSize;
+    this.maxBufferSize = maxBufferSize;
   }
 
   /**
@@ -122,6 +153,22 @@ public class BluetoothSppConnection {
     setState(State.CONNECTING);
   }
 
+  /**
+   * Enables or disables queued output for subsequent connections. In queued mode, write() only
+   * copies the bytes into a queue, and a dedicated writer thread passes them on to the output
+   * stream, combining small writes into larger ones. Queued output is disabled by default.
+   * 
+   * @param capacity capacity of the queue in bytes, a power of two; zero disables queued output
+   * @param policy behavior of writes that don't fit into the queue
+   * @param maxDelayMillis maximum time for the writer thread to wait for more data; zero for none
+   */
+  public synchronized void setQueuedOutput(int capacity, ByteRingBuffer.OverflowPolicy policy,
+      int maxDelayMillis) {
+    queueCapacity = capacity;
+    queuePolicy = policy;
+    queueDelayMillis = maxDelayMillis;
+  }
+
   /**
    * Write bytes to the output stream of the SPP connection.
    * 
@@ -221,22 +268,20 @@ public class BluetoothSppConnection {
     private ConnectedThread(BluetoothSocket socket) throws IOException {
       this.socket = socket;
       inStream = socket.getInputStream();
-      outStream = socket.getOutputStream();
+      outStream =
+          (queueCapacity > 0) ? new CoalescingOutputStream(socket.getOutputStream(), queueCapacity,
+              queuePolicy, queueDelayMillis) : socket.getOutputStream();
     }
 
     @Override
     public void run() {
-      byte[] buffer = new byte[bufferSize];
-      int nBytes;
-      while (true) {
-        try {
-          nBytes = inStream.read(buffer);
-          sppReceiver.onBytesReceived(nBytes, buffer);
-        } catch (IOException e) {
-          connectionLost();
-          break;
-        }
+      try {
+        new InputStreamPump(inStream, sppReceiver, bufferSize, maxBufferSize).run();
+      } catch (IOException e) {
+        // Fall through; errors and the end of the stream both mean that the connection is gone.
       }
+      closeOutStream();
+      connectionLost();
     }
 
     private void write(byte[] buffer, int offset, int count) throws IOException {
@@ -249,6 +294,17 @@ public class BluetoothSppConnection {
       } catch (IOException e) {
         Log.e(TAG, "Unable to close socket", e);
       }
+      closeOutStream();
+    }
+
+    private void closeOutStream() {
+      if (outStream instanceof CoalescingOutputStream) {
+        try {
+          outStream.close(); // Stops the writer thread.
+        } catch (IOException e) {
+          // Expected, since the socket is already closed.
+        }
+      }
     }
   }
 }
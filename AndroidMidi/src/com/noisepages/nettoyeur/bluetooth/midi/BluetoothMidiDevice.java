@@ -21,6 +21,7 @@ import com.noisepages.nettoyeur.bluetooth.BluetoothDisabledException;
 import com.noisepages.nettoyeur.bluetooth.BluetoothSppConnection;
 import com.noisepages.nettoyeur.bluetooth.BluetoothSppObserver;
 import com.noisepages.nettoyeur.bluetooth.BluetoothUnavailableException;
+import com.noisepages.nettoyeur.common.ByteRingBuffer;
 import com.noisepages.nettoyeur.common.RawByteReceiver;
 import com.noisepages.nettoyeur.midi.FromWireConverter;
 import com.noisepages.nettoyeur.midi.MidiDevice;
@@ -113,6 +114,31 @@ public class BluetoothMidiDevice implements MidiDevice {
     return toWire;
   }
 
+  /**
+   * Enables or disables running status on the Bluetooth output stream; disabled by default. Running
+   * status reduces the number of bytes to be sent over the Bluetooth connection by up to one third,
+   * but the receiving MIDI device needs to support it.
+   * 
+   * @param enabled true if repeated status bytes are to be omitted
+   */
+  public void setRunningStatus(boolean enabled) {
+    toWire.setRunningStatus(enabled);
+  }
+
+  /**
+   * Enables or disables queued output for subsequent connections, so that sending MIDI messages
+   * never blocks on a slow Bluetooth connection; see
+   * {@link BluetoothSppConnection#setQueuedOutput(int, ByteRingBuffer.OverflowPolicy, int)}.
+   * 
+   * @param capacity capacity of the queue in bytes, a power of two; zero disables queued output
+   * @param policy behavior of messages that don't fit into the queue
+   * @param maxDelayMillis maximum time to wait for more messages before writing; zero for none
+   */
+  public void setQueuedOutput(int capacity, ByteRingBuffer.OverflowPolicy policy,
+      int maxDelayMillis) {
+    btConnection.setQueuedOutput(capacity, policy, maxDelayMillis);
+  }
+
   /**
    * @return the state of the underlying Bluetooth connection
    */
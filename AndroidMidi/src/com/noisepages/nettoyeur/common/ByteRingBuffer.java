@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded byte queue for many writers and a single reader. Each write is atomic, i.e., it is either
+ * queued in its entirety or not at all. Writers are serialized among themselves, but the reader
+ * never takes a lock; it claims bytes by advancing the read position with compare-and-set, and
+ * simply retries if a writer has overwritten the bytes it was reading in the meantime.
+ *
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class ByteRingBuffer {
+
+  /**
+   * Behavior of writes that don't fit into the remaining space.
+   */
+  public static enum OverflowPolicy {
+    /**
+     * Discards the new bytes.
+     */
+    DROP,
+
+    /**
+     * Waits until the reader has made enough room.
+     */
+    BLOCK,
+
+    /**
+     * Discards the oldest bytes. Note that this may leave a partial MIDI message at the head of the
+     * queue.
+     */
+    OVERWRITE
+  }
+
+  private static final long BLOCK_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(250);
+
+  private final byte[] buffer;
+  private final int mask;
+  private final OverflowPolicy policy;
+  private final AtomicLong readPosition = new AtomicLong(0);
+  private volatile long writePosition = 0;
+  private volatile boolean closed = false;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity capacity in bytes, a power of two
+   * @param policy behavior of writes that don't fit into the remaining space
+   */
+  public ByteRingBuffer(int capacity, OverflowPolicy policy) {
+    if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+      throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+    }
+    buffer = new byte[capacity];
+    mask = capacity - 1;
+    this.policy = policy;
+  }
+
+  /**
+   * @return capacity in bytes
+   */
+  public int getCapacity() {
+    return buffer.length;
+  }
+
+  /**
+   * @return number of bytes that are currently queued
+   */
+  public int available() {
+    return (int) (writePosition - readPosition.get());
+  }
+
+  /**
+   * @return total number of bytes queued since creation
+   */
+  public long getWritePosition() {
+    return writePosition;
+  }
+
+  /**
+   * @return total number of bytes dequeued or overwritten since creation
+   */
+  public long getReadPosition() {
+    return readPosition.get();
+  }
+
+  /**
+   * Queues bytes, subject to the overflow policy.
+   *
+   * @param src buffer holding the bytes to be queued
+   * @param offset index of the first byte to be queued
+   * @param count number of bytes to be queued, at most the capacity
+   * @return true if the bytes were queued; false if they were dropped, or if the buffer was closed
+   *         or the calling thread was interrupted while blocking
+   */
+  public boolean write(byte[] src, int offset, int count) {
+    if (count > buffer.length) {
+      throw new IllegalArgumentException("Write exceeds capacity: " + count);
+    }
+    synchronized (this) {
+      long w = writePosition;
+      while (!closed) {
+        long r = readPosition.get();
+        if (buffer.length - (w - r) >= count) {
+          int start = (int) (w & mask);
+          int n = Math.min(count, buffer.length - start);
+          System.arraycopy(src, offset, buffer, start, n);
+          System.arraycopy(src, offset + n, buffer, 0, count - n);
+          writePosition = w + count;
+          return true;
+        }
+        switch (policy) {
+          case DROP:
+            return false;
+          case OVERWRITE:
+            // Claim the oldest bytes before overwriting them, so that a concurrent read will fail.
+            readPosition.compareAndSet(r, w + count - buffer.length);
+            break;
+          default /* BLOCK */:
+            if (Thread.currentThread().isInterrupted()) {
+              return false;
+            }
+            LockSupport.parkNanos(this, BLOCK_WAIT_NANOS);
+            break;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Dequeues up to the given number of bytes without blocking. Must only be called by a single
+   * reader thread.
+   *
+   * @param dst buffer to copy the bytes to
+   * @param offset index at which to copy the first byte
+   * @param maxCount maximum number of bytes to dequeue
+   * @return number of bytes dequeued, possibly zero
+   */
+  public int read(byte[] dst, int offset, int maxCount) {
+    maxCount = Math.min(maxCount, buffer.length);
+    while (true) {
+      long r = readPosition.get();
+      int count = (int) Math.min(writePosition - r, maxCount);
+      if (count <= 0) {
+        return 0;
+      }
+      int start = (int) (r & mask);
+      int n = Math.min(count, buffer.length - start);
+      System.arraycopy(buffer, start, dst, offset, n);
+      System.arraycopy(buffer, 0, dst, offset + n, count - n);
+      if (readPosition.compareAndSet(r, r + count)) {
+        return count;
+      }
+    }
+  }
+
+  /**
+   * Closes the buffer; all subsequent writes, including blocked ones, will fail. Bytes that have
+   * already been queued remain available to the reader.
+   */
+  public void close() {
+    closed = true;
+  }
+
+  /**
+   * @return true if the buffer has been closed
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+}
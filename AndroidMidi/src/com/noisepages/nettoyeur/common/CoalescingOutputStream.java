@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Output stream that queues writes in a {@link ByteRingBuffer} and passes them on to the underlying
+ * stream on a dedicated writer thread, so that a slow stream doesn't block the threads that produce
+ * the data. The writer thread combines everything that has been queued since it last woke up into a
+ * single write. If a coalescing delay is given, the writer waits up to that long for more data
+ * before writing, unless the queue is already half full or a flush is pending.
+ *
+ * Errors of the underlying stream are reported by the next call to write, flush, or close.
+ *
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class CoalescingOutputStream extends OutputStream {
+
+  private static final long FLUSH_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final OutputStream out;
+  private final ByteRingBuffer queue;
+  private final long maxDelayNanos;
+  private final byte[] chunk;
+  private final byte[] singleByte = new byte[1];
+  private final Thread writerThread;
+  private volatile IOException error = null;
+  private volatile long writtenPosition = 0; // Read position of the queue after the last write.
+  private volatile boolean flushRequested = false; // Cuts the coalescing delay short.
+
+  /**
+   * Constructor; starts the writer thread.
+   *
+   * @param out underlying output stream
+   * @param capacity capacity of the queue in bytes, a power of two
+   * @param policy behavior of writes that don't fit into the queue
+   * @param maxDelayMillis maximum time to wait for more data before writing; zero for none
+   */
+  public CoalescingOutputStream(OutputStream out, int capacity,
+      ByteRingBuffer.OverflowPolicy policy, int maxDelayMillis) {
+    if (maxDelayMillis < 0) {
+      throw new IllegalArgumentException("Negative coalescing delay: " + maxDelayMillis);
+    }
+    this.out = out;
+    queue = new ByteRingBuffer(capacity, policy);
+    maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    chunk = new byte[capacity];
+    writerThread = new Thread("CoalescingOutputStream") {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    };
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  @Override
+  public synchronized void write(int b) throws IOException {
+    singleByte[0] = (byte) b;
+    write(singleByte, 0, 1);
+  }
+
+  /**
+   * Queues bytes for writing. Depending on the overflow policy, bytes may be dropped silently if
+   * the queue is full. Writes that exceed the capacity of the queue are split.
+   */
+  @Override
+  public void write(byte[] buffer, int offset, int count) throws IOException {
+    checkError();
+    if (queue.isClosed()) {
+      throw new IOException("Stream closed");
+    }
+    int capacity = queue.getCapacity();
+    for (int end = offset + count; offset < end; offset += capacity) {
+      queue.write(buffer, offset, Math.min(capacity, end - offset));
+      LockSupport.unpark(writerThread);
+    }
+  }
+
+  /**
+   * Waits until all queued bytes have been written to the underlying stream.
+   */
+  @Override
+  public void flush() throws IOException {
+    long target = queue.getWritePosition();
+    flushRequested = true;
+    LockSupport.unpark(writerThread);
+    while (writtenPosition < target && writerThread.isAlive()) {
+      LockSupport.parkNanos(this, FLUSH_WAIT_NANOS);
+    }
+    checkError();
+  }
+
+  /**
+   * Writes all queued bytes, stops the writer thread, and closes the underlying stream.
+   */
+  @Override
+  public void close() throws IOException {
+    queue.close();
+    LockSupport.unpark(writerThread);
+    boolean interrupted = false;
+    while (writerThread.isAlive()) {
+      try {
+        writerThread.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    out.close();
+    checkError();
+  }
+
+  private void checkError() throws IOException {
+    IOException e = error;
+    if (e != null) {
+      throw e;
+    }
+  }
+
+  private void writeLoop() {
+    while (true) {
+      if (queue.available() == 0) {
+        if (queue.isClosed()) break;
+        LockSupport.park(this);
+        continue;
+      }
+      if (maxDelayNanos > 0) {
+        long deadline = System.nanoTime() + maxDelayNanos;
+        long remaining;
+        while (!queue.isClosed() && !flushRequested && queue.available() < chunk.length / 2
+            && (remaining = deadline - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(this, remaining);
+        }
+      }
+      // Flushes that are requested from here on may need another write, and those that were
+      // requested before are satisfied by this one.
+      flushRequested = false;
+      int n = queue.read(chunk, 0, chunk.length);
+      try {
+        out.write(chunk, 0, n);
+        out.flush();
+        writtenPosition = queue.getReadPosition();
+      } catch (IOException e) {
+        error = e;
+        queue.close(); // Release blocked writers; subsequent writes will report the error.
+        break;
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Read loop that passes everything it reads from an input stream on to a {@link RawByteReceiver}.
+ * The read buffer is reused for all reads. It starts small and doubles, up to a given maximum,
+ * whenever a read fills it completely, since that means that a burst (such as a sysex dump) is
+ * arriving faster than it is being read. The buffer never shrinks, so that the loop stops
+ * allocating once it has adapted to the traffic.
+ *
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class InputStreamPump {
+
+  private final InputStream in;
+  private final RawByteReceiver receiver;
+  private final int maxBufferSize;
+  private byte[] buffer;
+
+  /**
+   * Constructor.
+   *
+   * @param in input stream to read from
+   * @param receiver receiver for incoming bytes; must not hold on to the buffer
+   * @param initialBufferSize initial size of the read buffer
+   * @param maxBufferSize maximum size of the read buffer
+   */
+  public InputStreamPump(InputStream in, RawByteReceiver receiver, int initialBufferSize,
+      int maxBufferSize) {
+    if (initialBufferSize < 1 || maxBufferSize < initialBufferSize) {
+      throw new IllegalArgumentException("Bad buffer sizes: " + initialBufferSize + ", "
+          + maxBufferSize);
+    }
+    this.in = in;
+    this.receiver = receiver;
+    this.maxBufferSize = maxBufferSize;
+    buffer = new byte[initialBufferSize];
+  }
+
+  /**
+   * @return current size of the read buffer
+   */
+  public int getBufferSize() {
+    return buffer.length;
+  }
+
+  /**
+   * Reads until the end of the stream is reached.
+   *
+   * @throws IOException if reading fails
+   */
+  public void run() throws IOException {
+    while (true) {
+      int nBytes = in.read(buffer);
+      if (nBytes < 0) {
+        return;
+      }
+      if (nBytes > 0) {
+        receiver.onBytesReceived(nBytes, buffer);
+      }
+      if (nBytes == buffer.length && buffer.length < maxBufferSize) {
+        buffer = new byte[Math.min(2 * buffer.length, maxBufferSize)];
+      }
+    }
+  }
+}
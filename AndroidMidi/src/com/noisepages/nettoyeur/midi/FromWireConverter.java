@@ -15,6 +15,7 @@
 package com.noisepages.nettoyeur.midi;
 
 import com.noisepages.nettoyeur.common.RawByteReceiver;
+import com.noisepages.nettoyeur.midi.util.PackedMessageEncoder;
 
 
 /**
@@ -24,87 +25,118 @@ import com.noisepages.nettoyeur.common.RawByteReceiver;
  */
 public class FromWireConverter implements RawByteReceiver {
 
-  private static enum State {
-    NOTE_OFF, NOTE_ON, POLY_TOUCH, CONTROL_CHANGE, PROGRAM_CHANGE, AFTERTOUCH, PITCH_BEND, NONE
-  }
+  // Channel message commands, indexed by bits 4-6 of the status byte.
+  private static final int NOTE_OFF = 0;
+  private static final int NOTE_ON = 1;
+  private static final int POLY_TOUCH = 2;
+  private static final int CONTROL_CHANGE = 3;
+  private static final int PROGRAM_CHANGE = 4;
+  private static final int AFTERTOUCH = 5;
+  private static final int PITCH_BEND = 6;
+
+  // Number of data bytes by command; 0 means that the status byte doesn't start a channel message.
+  private static final int[] dataLength = new int[] {2, 2, 2, 2, 1, 1, 2, 0};
 
   private final MidiReceiver midiReceiver;
-  private State midiState = State.NONE;
+  private final PackedMessageEncoder packedEncoder; // Null unless decoding to packed messages.
+  private int command = -1;
+  private int nData = 0; // Zero if no channel message is in progress.
   private int channel;
   private int firstByte;
 
   public FromWireConverter(MidiReceiver midiReceiver) {
     this.midiReceiver = midiReceiver;
+    packedEncoder = null;
+  }
+
+  /**
+   * Creates a converter that delivers all messages decoded from one buffer in a single batch, or in
+   * a single batch per block if the caller uses block mode.
+   * 
+   * @param packedReceiver receiver for batches of packed messages
+   */
+  public FromWireConverter(PackedMidiReceiver packedReceiver) {
+    packedEncoder = new PackedMessageEncoder(packedReceiver);
+    midiReceiver = packedEncoder;
   }
 
   @Override
   public void onBytesReceived(int nBytes, byte[] buffer) {
-    for (int i = 0; i < nBytes; i++) {
-      processByte(buffer[i]);
+    onBytesReceived(nBytes, buffer, 0);
+  }
+
+  /**
+   * Decodes a slice of a buffer, so that callers don't need to copy payloads out of larger packets.
+   * 
+   * @param nBytes number of bytes to decode
+   * @param buffer buffer holding the bytes
+   * @param offset index of the first byte to decode
+   */
+  public void onBytesReceived(int nBytes, byte[] buffer, int offset) {
+    if (packedEncoder != null) {
+      packedEncoder.beginBlock();
+      decodeBytes(buffer, offset, offset + nBytes);
+      packedEncoder.endBlock();
+    } else {
+      decodeBytes(buffer, offset, offset + nBytes);
     }
   }
 
-  private void processByte(int b) {
-    if (b < 0) {
-      midiState = State.values()[(b >> 4) & 0x07];
-      if (midiState != State.NONE) {
-        channel = b & 0x0f;
-        firstByte = -1;
+  private void decodeBytes(byte[] buffer, int start, int end) {
+    for (int i = start; i < end; i++) {
+      int b = buffer[i];
+      if (b < (byte) 0xf8) {
+        // Status bytes other than real time messages start a new message.
+        command = (b >> 4) & 0x07;
+        nData = dataLength[command];
+        if (nData > 0) {
+          channel = b & 0x0f;
+          firstByte = -1;
+        } else {
+          midiReceiver.onRawByte((byte) b);
+        }
+      } else if (b < 0) {
+        midiReceiver.onRawByte((byte) b); // Real time messages don't affect running status.
+      } else if (nData == 2) {
+        if (firstByte < 0) {
+          firstByte = b;
+        } else {
+          onTwoByteMessage(firstByte, b);
+          firstByte = -1;
+        }
+      } else if (nData == 1) {
+        onOneByteMessage(b);
       } else {
         midiReceiver.onRawByte((byte) b);
       }
-    } else {
-      switch (midiState) {
-        case NOTE_OFF:
-          if (firstByte < 0) {
-            firstByte = b;
-          } else {
-            midiReceiver.onNoteOff(channel, firstByte, b);
-            firstByte = -1;
-          }
-          break;
-        case NOTE_ON:
-          if (firstByte < 0) {
-            firstByte = b;
-          } else {
-            midiReceiver.onNoteOn(channel, firstByte, b);
-            firstByte = -1;
-          }
-          break;
-        case POLY_TOUCH:
-          if (firstByte < 0) {
-            firstByte = b;
-          } else {
-            midiReceiver.onPolyAftertouch(channel, firstByte, b);
-            firstByte = -1;
-          }
-          break;
-        case CONTROL_CHANGE:
-          if (firstByte < 0) {
-            firstByte = b;
-          } else {
-            midiReceiver.onControlChange(channel, firstByte, b);
-            firstByte = -1;
-          }
-          break;
-        case PROGRAM_CHANGE:
-          midiReceiver.onProgramChange(channel, b);
-          break;
-        case AFTERTOUCH:
-          midiReceiver.onAftertouch(channel, b);
-          break;
-        case PITCH_BEND:
-          if (firstByte < 0) {
-            firstByte = b;
-          } else {
-            midiReceiver.onPitchBend(channel, ((b << 7) | firstByte) - 8192);
-            firstByte = -1;
-          }
-          break;
-        default /* State.NONE */:
-          midiReceiver.onRawByte((byte) b);
-          break;
-      }
+    }
+  }
+
+  private void onOneByteMessage(int a) {
+    if (command == PROGRAM_CHANGE) {
+      midiReceiver.onProgramChange(channel, a);
+    } else /* AFTERTOUCH */{
+      midiReceiver.onAftertouch(channel, a);
+    }
+  }
+
+  private void onTwoByteMessage(int a, int b) {
+    switch (command) {
+      case NOTE_OFF:
+        midiReceiver.onNoteOff(channel, a, b);
+        break;
+      case NOTE_ON:
+        midiReceiver.onNoteOn(channel, a, b);
+        break;
+      case POLY_TOUCH:
+        midiReceiver.onPolyAftertouch(channel, a, b);
+        break;
+      case CONTROL_CHANGE:
+        midiReceiver.onControlChange(channel, a, b);
+        break;
+      default /* PITCH_BEND */:
+        midiReceiver.onPitchBend(channel, ((b << 7) | a) - 8192);
+        break;
     }
   }
 
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.midi;
+
+import com.noisepages.nettoyeur.midi.util.PackedMessageDecoder;
+import com.noisepages.nettoyeur.midi.util.PackedMessageEncoder;
+
+/**
+ * Callback for handling batches of MIDI messages in one call. Each message is packed into an int
+ * in the same way as in the MIDI file classes, i.e., the status byte occupies bits 0-7, the first
+ * data byte bits 8-15, and the second data byte bits 16-23. Pitch bend values are packed as they
+ * appear on the wire, least significant seven bits first.
+ * 
+ * Raw bytes, i.e., bytes that {@link MidiReceiver} would deliver through onRawByte, are packed with
+ * the {@link #RAW_BYTE} flag set and the byte value in bits 0-7.
+ * 
+ * Use {@link PackedMessageEncoder} and {@link PackedMessageDecoder} to convert between this
+ * interface and {@link MidiReceiver}.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public interface PackedMidiReceiver {
+
+  /**
+   * Flag marking a packed message as a raw MIDI byte.
+   */
+  public static final int RAW_BYTE = 0x01000000;
+
+  /**
+   * Handles a batch of packed MIDI messages. Implementations must not hold on to the array after
+   * this method returns since callers may reuse it.
+   * 
+   * @param count number of messages, starting at the beginning of the array
+   * @param messages array of packed messages
+   */
+  void onMessagesReceived(int count, int[] messages);
+}
@@ -18,18 +18,44 @@ import com.noisepages.nettoyeur.common.RawByteReceiver;
 
 
 /**
- * Converter from MIDI events to MIDI wire format.
+ * Converter from MIDI events to MIDI wire format. Messages are encoded into reusable buffers, so
+ * the raw byte receiver must not hold on to a buffer after onBytesReceived returns.
+ * 
+ * The converter is also a raw byte receiver itself, so that raw MIDI bytes, such as sysex
+ * messages, can be passed through in bulk rather than one call to onRawByte per byte.
  * 
  * @author Peter Brinkmann (peter.brinkmann@gmail.com)
  */
-public class ToWireConverter implements MidiReceiver {
+public class ToWireConverter implements MidiReceiver, RawByteReceiver {
 
   private final RawByteReceiver rawReceiver;
+  // One scratch buffer per message length, so that each buffer holds exactly one message.
+  private final byte[] buffer1 = new byte[1];
+  private final byte[] buffer2 = new byte[2];
+  private final byte[] buffer3 = new byte[3];
+  private boolean runningStatus = false;
+  private byte lastStatus = 0; // Zero if the next message must include its status byte.
 
   public ToWireConverter(RawByteReceiver rawReceiver) {
     this.rawReceiver = rawReceiver;
   }
 
+  /**
+   * Enables or disables running status, i.e., the omission of status bytes that are the same as the
+   * status byte of the preceding channel message. Running status reduces the number of bytes on the
+   * wire, but it only works if the receiving end keeps track of the current status, and so it is off
+   * by default. USB MIDI, in particular, does not support running status.
+   * 
+   * The status is reset by system common and system exclusive bytes as well as by endBlock(), i.e.,
+   * the first channel message after any of those will always include its status byte.
+   * 
+   * @param enabled true if status bytes are to be omitted when possible
+   */
+  public synchronized void setRunningStatus(boolean enabled) {
+    runningStatus = enabled;
+    lastStatus = 0;
+  }
+
   @Override
   public void onNoteOff(int ch, int note, int vel) {
     write(0x80, ch, note, vel);
@@ -67,24 +93,68 @@ public class ToWireConverter implements MidiReceiver {
   }
 
   @Override
-  public void onRawByte(byte value) {
-    writeBytes(value);
+  public synchronized void onRawByte(byte value) {
+    if (value < (byte) 0xf8) { // Status bytes except real time messages cancel running status.
+      lastStatus = 0;
+    }
+    buffer1[0] = value;
+    rawReceiver.onBytesReceived(1, buffer1);
   }
 
-  private void write(int msg, int ch, int a) {
-    writeBytes(firstByte(msg, ch), (byte) a);
+  /**
+   * Passes raw MIDI bytes on to the raw byte receiver in one piece; equivalent to calling onRawByte
+   * for each byte, but more efficient.
+   * 
+   * @param nBytes number of bytes to send
+   * @param buffer buffer holding the bytes, starting at index zero
+   */
+  @Override
+  public synchronized void onBytesReceived(int nBytes, byte[] buffer) {
+    for (int i = 0; i < nBytes; i++) {
+      if (buffer[i] < (byte) 0xf8) { // Same as in onRawByte.
+        lastStatus = 0;
+        break;
+      }
+    }
+    rawReceiver.onBytesReceived(nBytes, buffer);
   }
 
-  private void write(int msg, int ch, int a, int b) {
-    writeBytes(firstByte(msg, ch), (byte) a, (byte) b);
+  private synchronized void write(int msg, int ch, int a) {
+    byte status = firstByte(msg, ch);
+    if (omitStatus(status)) {
+      buffer1[0] = (byte) a;
+      rawReceiver.onBytesReceived(1, buffer1);
+    } else {
+      buffer2[0] = status;
+      buffer2[1] = (byte) a;
+      rawReceiver.onBytesReceived(2, buffer2);
+    }
   }
 
-  private byte firstByte(int msg, int ch) {
-    return (byte) (msg | (ch & 0x0f));
+  private synchronized void write(int msg, int ch, int a, int b) {
+    byte status = firstByte(msg, ch);
+    if (omitStatus(status)) {
+      buffer2[0] = (byte) a;
+      buffer2[1] = (byte) b;
+      rawReceiver.onBytesReceived(2, buffer2);
+    } else {
+      buffer3[0] = status;
+      buffer3[1] = (byte) a;
+      buffer3[2] = (byte) b;
+      rawReceiver.onBytesReceived(3, buffer3);
+    }
+  }
+
+  private boolean omitStatus(byte status) {
+    if (runningStatus && status == lastStatus) {
+      return true;
+    }
+    lastStatus = runningStatus ? status : 0;
+    return false;
   }
 
-  private void writeBytes(byte... out) {
-    rawReceiver.onBytesReceived(out.length, out);
+  private byte firstByte(int msg, int ch) {
+    return (byte) (msg | (ch & 0x0f));
   }
 
   @Override
@@ -94,6 +164,9 @@ public class ToWireConverter implements MidiReceiver {
 
   @Override
   public void endBlock() {
+    synchronized (this) {
+      lastStatus = 0;
+    }
     rawReceiver.endBlock();
   }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.midi.util;
+
+import com.noisepages.nettoyeur.midi.MidiReceiver;
+import com.noisepages.nettoyeur.midi.PackedMidiReceiver;
+
+/**
+ * Adapter from batches of packed messages to {@link MidiReceiver} callbacks. Batches of more than
+ * one message are wrapped in beginBlock() and endBlock() calls.
+ *
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class PackedMessageDecoder implements PackedMidiReceiver {
+
+  private final MidiReceiver receiver;
+
+  public PackedMessageDecoder(MidiReceiver receiver) {
+    this.receiver = receiver;
+  }
+
+  @Override
+  public void onMessagesReceived(int count, int[] messages) {
+    boolean inBlock = count > 1 && receiver.beginBlock();
+    for (int i = 0; i < count; i++) {
+      decodeMessage(messages[i]);
+    }
+    if (inBlock) {
+      receiver.endBlock();
+    }
+  }
+
+  /**
+   * Decodes a single packed message.
+   *
+   * @param message packed as described in {@link PackedMidiReceiver}
+   */
+  public void decodeMessage(int message) {
+    if ((message & RAW_BYTE) != 0) {
+      receiver.onRawByte((byte) message);
+      return;
+    }
+    int channel = message & 0x0f;
+    int a = (message >> 8) & 0x7f;
+    int b = (message >> 16) & 0x7f;
+    switch (message & 0xf0) {
+      case 0x80:
+        receiver.onNoteOff(channel, a, b);
+        break;
+      case 0x90:
+        receiver.onNoteOn(channel, a, b);
+        break;
+      case 0xa0:
+        receiver.onPolyAftertouch(channel, a, b);
+        break;
+      case 0xb0:
+        receiver.onControlChange(channel, a, b);
+        break;
+      case 0xc0:
+        receiver.onProgramChange(channel, a);
+        break;
+      case 0xd0:
+        receiver.onAftertouch(channel, a);
+        break;
+      case 0xe0:
+        receiver.onPitchBend(channel, ((b << 7) | a) - 8192);
+        break;
+      default:
+        receiver.onRawByte((byte) message); // Status bytes of system messages.
+        break;
+    }
+  }
+}
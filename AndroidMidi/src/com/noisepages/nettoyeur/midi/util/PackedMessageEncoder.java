@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.midi.util;
+
+import com.noisepages.nettoyeur.midi.MidiReceiver;
+import com.noisepages.nettoyeur.midi.PackedMidiReceiver;
+
+/**
+ * Adapter from {@link MidiReceiver} callbacks to batches of packed messages. Outside of block mode,
+ * every message is passed on right away. In block mode, messages are collected until the matching
+ * endBlock() call and then passed on in one batch. Blocks may be nested; only the outermost
+ * endBlock() call delivers the batch.
+ *
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class PackedMessageEncoder implements MidiReceiver {
+
+  private static final int DEFAULT_CAPACITY = 256;
+
+  private final PackedMidiReceiver receiver;
+  private final int[] messages;
+  private int count = 0;
+  private int depth = 0;
+
+  public PackedMessageEncoder(PackedMidiReceiver receiver) {
+    this(receiver, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param receiver to which batches of packed messages will be sent
+   * @param capacity maximum number of messages per batch; larger blocks will be split
+   */
+  public PackedMessageEncoder(PackedMidiReceiver receiver, int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    this.receiver = receiver;
+    messages = new int[capacity];
+  }
+
+  @Override
+  public void onNoteOff(int channel, int key, int velocity) {
+    add(0x80, channel, key, velocity);
+  }
+
+  @Override
+  public void onNoteOn(int channel, int key, int velocity) {
+    add(0x90, channel, key, velocity);
+  }
+
+  @Override
+  public void onPolyAftertouch(int channel, int key, int velocity) {
+    add(0xa0, channel, key, velocity);
+  }
+
+  @Override
+  public void onControlChange(int channel, int controller, int value) {
+    add(0xb0, channel, controller, value);
+  }
+
+  @Override
+  public void onProgramChange(int channel, int program) {
+    add(0xc0, channel, program, 0);
+  }
+
+  @Override
+  public void onAftertouch(int channel, int velocity) {
+    add(0xd0, channel, velocity, 0);
+  }
+
+  @Override
+  public void onPitchBend(int channel, int value) {
+    value += 8192;
+    add(0xe0, channel, value & 0x7f, value >> 7);
+  }
+
+  @Override
+  public void onRawByte(byte value) {
+    add(PackedMidiReceiver.RAW_BYTE | (value & 0xff));
+  }
+
+  @Override
+  public synchronized boolean beginBlock() {
+    depth++;
+    return true;
+  }
+
+  @Override
+  public synchronized void endBlock() {
+    if (depth > 0 && --depth == 0) {
+      flush();
+    }
+  }
+
+  /**
+   * Passes on all pending messages, regardless of block mode.
+   */
+  public synchronized void flush() {
+    if (count > 0) {
+      receiver.onMessagesReceived(count, messages);
+      count = 0;
+    }
+  }
+
+  private void add(int command, int channel, int a, int b) {
+    add(command | (channel & 0x0f) | ((a & 0x7f) << 8) | ((b & 0x7f) << 16));
+  }
+
+  private synchronized void add(int message) {
+    messages[count++] = message;
+    if (depth == 0 || count == messages.length) {
+      flush();
+    }
+  }
+}
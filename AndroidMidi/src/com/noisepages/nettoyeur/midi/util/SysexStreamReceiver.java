@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.midi.util;
+
+/**
+ * Interface for handling system exclusive messages piece by piece, as they arrive, rather than as
+ * complete messages. This is meant for large dumps, such as firmware updates or samples, that
+ * shouldn't be held in memory in their entirety.
+ *
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public interface SysexStreamReceiver {
+
+  /**
+   * Handles the beginning of a sysex message, i.e., the opening 0xf0 byte.
+   */
+  void onSysexBegin();
+
+  /**
+   * Handles a chunk of the payload of the current sysex message. The chunk is only valid for the
+   * duration of the call; it may be a slice of the buffer that is being decoded.
+   *
+   * @param buffer buffer holding the chunk
+   * @param offset index of the first byte of the chunk
+   * @param length number of bytes in the chunk
+   */
+  void onSysexData(byte[] buffer, int offset, int length);
+
+  /**
+   * Handles the end of the current sysex message.
+   *
+   * @param complete true if the message ended with 0xf7, false if it was cut short by another status
+   *        byte
+   */
+  void onSysexEnd(boolean complete);
+}
@@ -14,12 +14,16 @@
 
 package com.noisepages.nettoyeur.midi.util;
 
-import java.io.ByteArrayOutputStream;
-
 /**
  * Utility class for decoding MIDI system messages. Instances of this class parse an incoming stream
  * of MIDI bytes, e.g., from the onRawByte method of MidiReceiver, and extract system messages.
  * 
+ * Sysex messages are either collected and delivered as a whole, or streamed in chunks to a
+ * {@link SysexStreamReceiver}. When collecting, the decoder reuses one buffer for all messages and
+ * drops messages that exceed a maximum length, so that a corrupt stream can't make it grow without
+ * bounds. When streaming, the size of messages is unlimited, and {@link #decodeBytes} delivers
+ * chunks as slices of its input, without copying.
+ * 
  * @author Peter Brinkmann (peter.brinkmann@gmail.com)
  */
 public class SystemMessageDecoder {
@@ -28,13 +32,83 @@ public class SystemMessageDecoder {
     SYSTEM_EXCLUSIVE, TIME_CODE, SONG_POSITION, SONG_SELECT, NONE
   };
 
+  /**
+   * Default maximum length of sysex messages that are delivered as a whole.
+   */
+  public static final int DEFAULT_MAX_SYSEX_LENGTH = 1 << 20;
+
+  private static final int INITIAL_BUFFER_SIZE = 256; // Also the chunk size when streaming.
+
   private final SystemMessageReceiver receiver;
+  private final SysexStreamReceiver sysexReceiver; // Null unless streaming.
+  private final int maxSysexLength;
   private State state = State.NONE;
   private int firstByte = -1;
-  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+  private int length = 0; // Number of sysex bytes in the buffer.
+  private boolean overflow = false; // True if the current sysex message is too long.
+  private int droppedCount = 0;
 
   public SystemMessageDecoder(SystemMessageReceiver receiver) {
+    this(receiver, DEFAULT_MAX_SYSEX_LENGTH);
+  }
+
+  /**
+   * Creates a decoder that delivers sysex messages as a whole.
+   * 
+   * @param receiver receiver for system messages
+   * @param maxSysexLength maximum length of sysex payloads; longer messages are dropped
+   */
+  public SystemMessageDecoder(SystemMessageReceiver receiver, int maxSysexLength) {
+    if (maxSysexLength < 0) {
+      throw new IllegalArgumentException("Negative maximum length: " + maxSysexLength);
+    }
     this.receiver = receiver;
+    this.maxSysexLength = maxSysexLength;
+    sysexReceiver = null;
+  }
+
+  /**
+   * Creates a decoder that streams sysex messages; the onSystemExclusive method of the system
+   * message receiver won't be called.
+   * 
+   * @param receiver receiver for system messages other than sysex
+   * @param sysexReceiver receiver for chunks of sysex messages
+   */
+  public SystemMessageDecoder(SystemMessageReceiver receiver, SysexStreamReceiver sysexReceiver) {
+    this.receiver = receiver;
+    this.sysexReceiver = sysexReceiver;
+    maxSysexLength = Integer.MAX_VALUE;
+  }
+
+  /**
+   * @return number of sysex messages that were dropped because they exceeded the maximum length
+   */
+  public int getDroppedSysexCount() {
+    return droppedCount;
+  }
+
+  /**
+   * Handles a buffer of incoming MIDI bytes. Runs of sysex data are handled in bulk; in particular,
+   * they are passed on as slices of the buffer when streaming. Bytes that don't belong to system
+   * messages are ignored; use {@link #decodeByte} if you need to handle them.
+   * 
+   * @param buffer buffer holding the bytes
+   * @param offset index of the first byte to decode
+   * @param count number of bytes to decode
+   */
+  public void decodeBytes(byte[] buffer, int offset, int count) {
+    int end = offset + count;
+    int i = offset;
+    while (i < end) {
+      if (state == State.SYSTEM_EXCLUSIVE && buffer[i] >= 0) {
+        int start = i;
+        while (++i < end && buffer[i] >= 0) {}
+        appendSysex(buffer, start, i - start);
+      } else {
+        decodeByte(buffer[i++]);
+      }
+    }
   }
 
   /**
@@ -45,11 +119,22 @@ public class SystemMessageDecoder {
    */
   public boolean decodeByte(byte value) {
     boolean byteHandled = true;
+    if (state == State.SYSTEM_EXCLUSIVE && value < 0 && value != (byte) 0xf7) {
+      if (value >= (byte) 0xf8 && value != (byte) 0xf9 && value != (byte) 0xfd) {
+        flushSysex(); // Real time message; the sysex message continues.
+      } else {
+        endSysex(false);
+      }
+    }
     switch (value) {
     // Handle system common messages.
       case (byte) 0xf0:
-        buffer.reset();
+        length = 0;
+        overflow = false;
         state = State.SYSTEM_EXCLUSIVE;
+        if (sysexReceiver != null) {
+          sysexReceiver.onSysexBegin();
+        }
         break;
       case (byte) 0xf1:
         state = State.TIME_CODE;
@@ -67,7 +152,7 @@ public class SystemMessageDecoder {
         break;
       case (byte) 0xf7:
         if (state == State.SYSTEM_EXCLUSIVE) {
-          receiver.onSystemExclusive(buffer.toByteArray());
+          endSysex(true);
         }
         state = State.NONE;
         break;
@@ -95,7 +180,12 @@ public class SystemMessageDecoder {
         if (value >= 0) {
           switch (state) {
             case SYSTEM_EXCLUSIVE:
-              buffer.write(value);
+              if (sysexReceiver != null && length == buffer.length) {
+                flushSysex();
+              }
+              if (reserve(1)) {
+                buffer[length++] = value;
+              }
               break;
             case TIME_CODE:
               receiver.onTimeCode(value);
@@ -125,4 +215,54 @@ public class SystemMessageDecoder {
     }
     return byteHandled;
   }
+
+  private void appendSysex(byte[] data, int offset, int count) {
+    if (sysexReceiver != null) {
+      flushSysex();
+      sysexReceiver.onSysexData(data, offset, count);
+    } else if (reserve(count)) {
+      System.arraycopy(data, offset, buffer, length, count);
+      length += count;
+    }
+  }
+
+  // Makes room for more sysex bytes in the buffer; returns false if the message is too long.
+  private boolean reserve(int count) {
+    if (overflow || length + count > maxSysexLength) {
+      overflow = true;
+      return false;
+    }
+    if (length + count > buffer.length) {
+      byte[] newBuffer =
+          new byte[Math.min(Math.max(2 * buffer.length, length + count), maxSysexLength)];
+      System.arraycopy(buffer, 0, newBuffer, 0, length);
+      buffer = newBuffer;
+    }
+    return true;
+  }
+
+  // Passes buffered sysex bytes on to the stream receiver, if any.
+  private void flushSysex() {
+    if (sysexReceiver != null && length > 0) {
+      sysexReceiver.onSysexData(buffer, 0, length);
+      length = 0;
+    }
+  }
+
+  private void endSysex(boolean complete) {
+    if (sysexReceiver != null) {
+      flushSysex();
+      sysexReceiver.onSysexEnd(complete);
+    } else if (complete) {
+      if (overflow) {
+        droppedCount++;
+      } else {
+        byte[] sysex = new byte[length];
+        System.arraycopy(buffer, 0, sysex, 0, length);
+        receiver.onSystemExclusive(sysex);
+      }
+    }
+    length = 0;
+    overflow = false;
+  }
 }
@@ -14,55 +14,76 @@
 
 package com.noisepages.nettoyeur.midi.util;
 
+import com.noisepages.nettoyeur.common.RawByteReceiver;
 import com.noisepages.nettoyeur.midi.MidiReceiver;
 
+/**
+ * Encoder for MIDI system messages. If the MIDI receiver is also a {@link RawByteReceiver}, such as
+ * ToWireConverter, then each system common or sysex message is passed on in one piece, from a
+ * reusable buffer; otherwise, the encoder calls onRawByte for each byte.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
 public class SystemMessageEncoder implements SystemMessageReceiver {
 
   private final MidiReceiver receiver;
+  private final RawByteReceiver rawReceiver; // Null unless the receiver takes raw bytes in bulk.
+  private byte[] buffer = new byte[16];
 
   public SystemMessageEncoder(MidiReceiver receiver) {
     this.receiver = receiver;
+    rawReceiver = (receiver instanceof RawByteReceiver) ? (RawByteReceiver) receiver : null;
   }
 
   @Override
-  public void onSystemExclusive(byte[] sysex) {
-    receiver.beginBlock();
-    receiver.onRawByte((byte) 0xf0);
-    for (byte b : sysex) {
-      receiver.onRawByte(b);
+  public synchronized void onSystemExclusive(byte[] sysex) {
+    if (buffer.length < sysex.length + 2) {
+      buffer = new byte[Math.max(2 * buffer.length, sysex.length + 2)];
     }
-    receiver.onRawByte((byte) 0xf7);
-    receiver.endBlock();
+    buffer[0] = (byte) 0xf0;
+    System.arraycopy(sysex, 0, buffer, 1, sysex.length);
+    buffer[sysex.length + 1] = (byte) 0xf7;
+    send(sysex.length + 2);
   }
 
   @Override
-  public void onTimeCode(int value) {
-    receiver.beginBlock();
-    receiver.onRawByte((byte) 0xf1);
-    receiver.onRawByte((byte) value);
-    receiver.endBlock();
+  public synchronized void onTimeCode(int value) {
+    buffer[0] = (byte) 0xf1;
+    buffer[1] = (byte) value;
+    send(2);
   }
 
   @Override
-  public void onSongPosition(int pointer) {
+  public synchronized void onSongPosition(int pointer) {
     if (pointer < 0 || pointer > 0x3fff) {
       throw new IllegalArgumentException("song position pointer out of range: " + pointer);
     }
-    receiver.beginBlock();
-    receiver.onRawByte((byte) 0xf2);
-    receiver.onRawByte((byte) (pointer & 0x7f));
-    receiver.onRawByte((byte) (pointer >> 7));
-    receiver.endBlock();
+    buffer[0] = (byte) 0xf2;
+    buffer[1] = (byte) (pointer & 0x7f);
+    buffer[2] = (byte) (pointer >> 7);
+    send(3);
   }
 
   @Override
-  public void onSongSelect(int index) {
+  public synchronized void onSongSelect(int index) {
     if (index < 0 || index > 0x7f) {
       throw new IllegalArgumentException("song index out of range: " + index);
     }
+    buffer[0] = (byte) 0xf3;
+    buffer[1] = (byte) (index & 0x7f);
+    send(2);
+  }
+
+  // Sends the first n bytes of the buffer as one block.
+  private void send(int n) {
     receiver.beginBlock();
-    receiver.onRawByte((byte) 0xf3);
-    receiver.onRawByte((byte) (index & 0x7f));
+    if (rawReceiver != null) {
+      rawReceiver.onBytesReceived(n, buffer);
+    } else {
+      for (int i = 0; i < n; i++) {
+        receiver.onRawByte(buffer[i]);
+      }
+    }
     receiver.endBlock();
   }
 
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.usb.midi;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.noisepages.nettoyeur.common.RawByteReceiver;
+
+/**
+ * Input loop that keeps several read requests queued against a USB endpoint. Whenever a request
+ * completes, its packet is handed to the packet receiver and the request is queued again, so that
+ * the host controller always has buffers to fill while packets are being processed.
+ * 
+ * Buffers are zeroed before they are queued. Older versions of Android don't report the number of
+ * bytes read by a request, and zero padding decodes as empty USB MIDI events.
+ * 
+ * The loop only returns once every queued request has completed, including cancelled ones, so that
+ * the requests can be closed safely afterwards. If a request can't be queued, the remaining
+ * requests are cancelled and the loop ends; see {@link #hasFailed()}.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+class QueuedInputEngine implements Runnable {
+
+  private final UsbRequestQueue queue;
+  private final ByteBuffer[] buffers;
+  private final RawByteReceiver packetReceiver;
+  private boolean running = true;
+  private volatile boolean failed = false;
+  private int nOutstanding = 0; // Requests that have been queued but not yet returned by await().
+
+  /**
+   * Constructor.
+   * 
+   * @param queue request queue for the input endpoint
+   * @param nRequests number of requests to keep queued
+   * @param packetSize size of each request buffer, usually the max packet size of the endpoint
+   * @param packetReceiver receiver for incoming packets
+   */
+  QueuedInputEngine(UsbRequestQueue queue, int nRequests, int packetSize,
+      RawByteReceiver packetReceiver) {
+    if (nRequests < 1) {
+      throw new IllegalArgumentException("Number of requests must be positive: " + nRequests);
+    }
+    this.queue = queue;
+    this.packetReceiver = packetReceiver;
+    buffers = new ByteBuffer[nRequests];
+    for (int i = 0; i < nRequests; i++) {
+      buffers[i] = ByteBuffer.allocate(packetSize);
+    }
+  }
+
+  @Override
+  public void run() {
+    for (int i = 0; i < buffers.length && post(i); i++);
+    while (nOutstanding > 0) {
+      int slot = queue.await();
+      if (slot < 0) {
+        if (isRunning()) {
+          failed = true;
+        }
+        break; // The remaining requests can't be reaped.
+      }
+      nOutstanding--;
+      if (!isRunning()) continue; // Reap cancelled requests.
+      ByteBuffer buffer = buffers[slot];
+      int n = buffer.position();
+      packetReceiver.onBytesReceived(n > 0 ? n : buffer.capacity(), buffer.array());
+      post(slot);
+    }
+  }
+
+  /**
+   * Stops the input loop by cancelling all pending requests. Does not wait for the loop to finish.
+   */
+  synchronized void stop() {
+    running = false;
+    queue.cancel();
+  }
+
+  /**
+   * @return true if the input loop ended because a request couldn't be queued or awaited, rather
+   *         than because of a call to stop()
+   */
+  boolean hasFailed() {
+    return failed;
+  }
+
+  private synchronized boolean isRunning() {
+    return running;
+  }
+
+  // Queuing and cancellation are mutually exclusive, so that no request can be queued after stop().
+  // If queuing fails, the other requests are cancelled so that the loop can reap them and end.
+  private synchronized boolean post(int slot) {
+    if (!running) return false;
+    ByteBuffer buffer = buffers[slot];
+    Arrays.fill(buffer.array(), (byte) 0);
+    buffer.clear();
+    if (!queue.queue(slot, buffer)) {
+      failed = true;
+      stop();
+      return false;
+    }
+    nOutstanding++;
+    return true;
+  }
+}
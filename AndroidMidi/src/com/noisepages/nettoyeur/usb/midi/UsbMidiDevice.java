@@ -14,12 +14,10 @@
 
 package com.noisepages.nettoyeur.usb.midi;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 import android.annotation.TargetApi;
 import android.content.Context;
@@ -29,11 +27,14 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
+import android.hardware.usb.UsbRequest;
+import android.util.Log;
 
 import com.noisepages.nettoyeur.common.RawByteReceiver;
 import com.noisepages.nettoyeur.midi.FromWireConverter;
 import com.noisepages.nettoyeur.midi.MidiDevice;
 import com.noisepages.nettoyeur.midi.MidiReceiver;
+import com.noisepages.nettoyeur.midi.PackedMidiReceiver;
 import com.noisepages.nettoyeur.midi.ToWireConverter;
 import com.noisepages.nettoyeur.usb.ConnectionFailedException;
 import com.noisepages.nettoyeur.usb.DeviceNotConnectedException;
@@ -58,18 +59,11 @@ import com.noisepages.nettoyeur.usb.UsbDeviceWithInfo;
 @TargetApi(12)
 public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
 
-  // USB payload size by Code Index Number.
-  private static final int[] midiPayloadSize = new int[] {
-  /* 0x00 */-1, /* 0x01 */-1, // Reserved for future extensions; currently unused
-      /* 0x02 */2, /* 0x03 */3, // System common
-      /* 0x04 */3, /* 0x05 */1, /* 0x06 */2, /* 0x07 */3, // System exclusive
-      /* 0x08 */3, /* 0x09 */3, /* 0x0a */3, /* 0x0b */3, /* 0x0c */2, /* 0x0d */2, /* 0x0e */3, // Channel
-                                                                                                 // messages
-      /* 0x0f */1 // MIDI byte
-      };
+  private static final String TAG = "UsbMidiDevice";
 
   private final List<UsbMidiInterface> interfaces = new ArrayList<UsbMidiDevice.UsbMidiInterface>();
   private UsbDeviceConnection connection = null;
+  private UsbMidiInput queuedInput = null; // The input that currently uses queued requests, if any.
 
   /**
    * MIDI-specific wrapper for USB interfaces within a USB devices. This class doesn't do much and
@@ -125,9 +119,50 @@ public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
   public class UsbMidiInput {
     private final UsbInterface iface;
     private final UsbEndpoint inputEndpoint;
-    private final ConcurrentMap<Integer, FromWireConverter> converters =
-        new ConcurrentHashMap<Integer, FromWireConverter>();
+    // Converters are indexed by cable number plus one; slot 0 holds the converter for all cables.
+    // Both arrays are copied on write, so that the input thread can read them without locking.
+    private volatile FromWireConverter[] converters = new FromWireConverter[17];
+    private volatile FromWireConverter[] packedConverters = new FromWireConverter[0];
     private volatile Thread inputThread = null;
+    private volatile QueuedInputEngine inputEngine = null;
+    private volatile AndroidRequestQueue requestQueue = null;
+
+    // Decodes USB MIDI packets and passes their payloads on to the converters.
+    private final RawByteReceiver packetDecoder = new RawByteReceiver() {
+      @Override
+      public void onBytesReceived(int nBytes, byte[] buffer) {
+        FromWireConverter[] current = converters;
+        FromWireConverter[] packed = packedConverters;
+        // Packed receivers get all events from one packet in a single batch.
+        for (FromWireConverter converter : packed) {
+          converter.beginBlock();
+        }
+        FromWireConverter all = current[0];
+        for (int i = 0; i + 3 < nBytes; i += 4) {
+          int b = buffer[i];
+          int n = UsbMidiPacketizer.midiPayloadSize[b & 0x0f];
+          if (n < 0) continue;
+          if (all != null) {
+            all.onBytesReceived(n, buffer, i + 1);
+          }
+          FromWireConverter converter = current[((b >> 4) & 0x0f) + 1];
+          if (converter != null) {
+            converter.onBytesReceived(n, buffer, i + 1);
+          }
+        }
+        for (FromWireConverter converter : packed) {
+          converter.endBlock();
+        }
+      }
+
+      @Override
+      public boolean beginBlock() {
+        return false;
+      }
+
+      @Override
+      public void endBlock() {}
+    };
 
     private UsbMidiInput(UsbInterface iface, UsbEndpoint endpoint) {
       this.iface = iface;
@@ -161,12 +196,50 @@ public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
       setReceiverInternal(cable, receiver);
     }
 
+    /**
+     * Sets the receiver for incoming MIDI events on all virtual cables. All events decoded from one
+     * USB packet will be delivered in a single batch.
+     * 
+     * @param receiver packed MIDI receiver for all cables; may be null
+     */
+    public void setPackedReceiver(PackedMidiReceiver receiver) {
+      setReceiverInternal(-1, receiver != null ? new FromWireConverter(receiver) : null, true);
+    }
+
+    /**
+     * Sets the receiver for a given virtual cable. All events decoded from one USB packet will be
+     * delivered in a single batch.
+     * 
+     * @param cable ranging from 0x00 to 0x0f
+     * @param receiver packed MIDI receiver for the given cable; may be null
+     */
+    public void setPackedReceiver(int cable, PackedMidiReceiver receiver) {
+      if (cable < 0x00 || cable > 0x0f) {
+        throw new IllegalArgumentException("Cable number out of range");
+      }
+      setReceiverInternal(cable, receiver != null ? new FromWireConverter(receiver) : null, true);
+    }
+
     private void setReceiverInternal(int cable, MidiReceiver receiver) {
-      if (receiver != null) {
-        converters.put(cable, new FromWireConverter(receiver));
-      } else {
-        converters.remove(cable);
+      setReceiverInternal(cable, receiver != null ? new FromWireConverter(receiver) : null, false);
+    }
+
+    private synchronized void setReceiverInternal(int cable, FromWireConverter converter,
+        boolean packed) {
+      FromWireConverter[] newConverters = converters.clone();
+      FromWireConverter previous = newConverters[cable + 1];
+      newConverters[cable + 1] = converter;
+      List<FromWireConverter> newPacked = new ArrayList<FromWireConverter>();
+      for (FromWireConverter c : packedConverters) {
+        if (c != previous) {
+          newPacked.add(c);
+        }
+      }
+      if (converter != null && packed) {
+        newPacked.add(converter);
       }
+      converters = newConverters;
+      packedConverters = newPacked.toArray(new FromWireConverter[newPacked.size()]);
     }
 
     /**
@@ -185,29 +258,59 @@ public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
       }
       inputThread = new Thread() {
         private final byte[] inputBuffer = new byte[inputEndpoint.getMaxPacketSize()];
-        private final byte[] tmpBuffer = new byte[3];
 
         @Override
         public void run() {
           while (!interrupted()) {
             int nRead = connection.bulkTransfer(inputEndpoint, inputBuffer, inputBuffer.length, 50);
-            for (int i = 0; i < nRead; i += 4) {
-              int b = inputBuffer[i];
-              int cable = (b >> 4) & 0x0f;
-              int n = midiPayloadSize[b & 0x0f];
-              if (n < 0) continue;
-              for (int j = 0; j < n; ++j) {
-                tmpBuffer[j] = inputBuffer[i + j + 1];
-              }
-              convertBytes(converters.get(-1), n); // Call converter for all cables, if any.
-              convertBytes(converters.get(cable), n);
+            if (nRead > 0) {
+              packetDecoder.onBytesReceived(nRead, inputBuffer);
             }
           }
         }
+      };
+      inputThread.start();
+    }
 
-        private void convertBytes(FromWireConverter converter, int n) {
-          if (converter != null) {
-            converter.onBytesReceived(n, tmpBuffer);
+    /**
+     * Starts listening to this MIDI input, keeping several asynchronous USB requests queued against
+     * the input endpoint. Unlike start(), this mode doesn't poll, so that stopping is immediate, and
+     * the host controller always has a buffer to fill while a packet is being processed.
+     * 
+     * Completions of asynchronous requests are reported per connection, not per endpoint, and so
+     * only one input of a device can use this mode at any given time.
+     * 
+     * @param nRequests number of requests to keep queued, e.g., 4
+     * @throws DeviceNotConnectedException if the MIDI device is not connected
+     * @throws InterfaceNotAvailableException if the corresponding interface is not available
+     */
+    public void startQueued(int nRequests) throws DeviceNotConnectedException,
+        InterfaceNotAvailableException {
+      if (connection == null) {
+        throw new DeviceNotConnectedException();
+      }
+      stop();
+      synchronized (UsbMidiDevice.this) {
+        if (queuedInput != null) {
+          throw new IllegalStateException("Another input is already using queued requests");
+        }
+        queuedInput = this;
+      }
+      if (!connection.claimInterface(iface, true)) {
+        releaseQueuedInput();
+        throw new InterfaceNotAvailableException();
+      }
+      requestQueue = new AndroidRequestQueue(inputEndpoint, nRequests);
+      final QueuedInputEngine engine =
+          new QueuedInputEngine(requestQueue, nRequests, inputEndpoint.getMaxPacketSize(),
+              packetDecoder);
+      inputEngine = engine;
+      inputThread = new Thread() {
+        @Override
+        public void run() {
+          engine.run();
+          if (engine.hasFailed()) {
+            Log.e(TAG, "Queued input of " + UsbMidiInput.this + " stopped; USB request failed");
           }
         }
       };
@@ -218,6 +321,9 @@ public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
      * Stops listening to this input.
      */
     public void stop() {
+      if (inputEngine != null) {
+        inputEngine.stop();
+      }
       if (inputThread != null) {
         inputThread.interrupt();
         try {
@@ -228,95 +334,93 @@ public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
         }
         inputThread = null;
       }
+      if (requestQueue != null) {
+        requestQueue.close();
+        requestQueue = null;
+        inputEngine = null;
+        releaseQueuedInput();
+      }
+    }
+
+    private void releaseQueuedInput() {
+      synchronized (UsbMidiDevice.this) {
+        if (queuedInput == this) {
+          queuedInput = null;
+        }
+      }
     }
   }
 
   /**
-   * Wrapper for USB MIDI output endpoints.
+   * Asynchronous USB requests against a single input endpoint.
    */
-  public class UsbMidiOutput {
-    private final UsbInterface iface;
-    private final UsbEndpoint outputEndpoint;
-    private final byte[] outBuffer;
-    private volatile int cable;
-
-    private final ToWireConverter toWire = new ToWireConverter(new RawByteReceiver() {
-      private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-      private boolean inBlock = false;
-      int writeIndex = 0;
-
-      @Override
-      public synchronized void onBytesReceived(int nBytes, byte[] buffer) {
-        if (connection == null) return;
-        for (int start = 0, end; start < nBytes; start = end) {
-          for (end = start + 1; end < nBytes && (buffer[end] == (byte) 0xf7 || buffer[end] >= 0); ++end);
-          processChunk(buffer, start, end);
-        }
-        transfer();
+  private class AndroidRequestQueue implements UsbRequestQueue {
+    private final UsbRequest[] requests;
+
+    private AndroidRequestQueue(UsbEndpoint endpoint, int nRequests) {
+      requests = new UsbRequest[nRequests];
+      for (int i = 0; i < nRequests; i++) {
+        requests[i] = new UsbRequest();
+        requests[i].initialize(connection, endpoint);
+        requests[i].setClientData(Integer.valueOf(i));
       }
+    }
 
-      private void processChunk(byte[] buffer, int start, int end) {
-        int cin = (buffer[start] >> 4) & 0x0f;
-        if (cin >= 0x08 && cin < 0x0f && end - start == midiPayloadSize[cin]) {
-          // The most common case: Correctly formed MIDI channel message.
-          outBuffer[writeIndex++] = (byte) (cable | cin);
-          while (start < end) {
-            outBuffer[writeIndex++] = buffer[start++];
-          }
-          while ((writeIndex & 0x03) != 0) {
-            outBuffer[writeIndex++] = 0;
-          }
-          transferIfFull();
-        } else {
-          // No channel message? Just dump single bytes.
-          while (start < end) {
-            outBuffer[writeIndex++] = (byte) (cable | 0x0f);
-            outBuffer[writeIndex++] = buffer[start++];
-            outBuffer[writeIndex++] = 0;
-            outBuffer[writeIndex++] = 0;
-            transferIfFull();
-          }
-        }
-      }
+    @Override
+    public boolean queue(int slot, ByteBuffer buffer) {
+      return requests[slot].queue(buffer, buffer.capacity());
+    }
 
-      private void transferIfFull() {
-        if (writeIndex >= outBuffer.length) {
-          transfer();
-        }
-      }
+    @Override
+    public int await() {
+      UsbDeviceConnection c = connection;
+      UsbRequest request = (c != null) ? c.requestWait() : null;
+      return (request != null) ? (Integer) request.getClientData() : -1;
+    }
 
-      private void transfer() {
-        if (inBlock) {
-          outputStream.write(outBuffer, 0, writeIndex);
-        } else {
-          connection.bulkTransfer(outputEndpoint, outBuffer, writeIndex, 0);
-        }
-        writeIndex = 0;
+    @Override
+    public void cancel() {
+      for (UsbRequest request : requests) {
+        request.cancel();
       }
+    }
 
-      @Override
-      public boolean beginBlock() {
-        outputStream.reset();
-        inBlock = true;
-        return true;
+    private void close() {
+      for (UsbRequest request : requests) {
+        request.close();
       }
+    }
+  }
 
-      @Override
-      public void endBlock() {
-        if (inBlock) {
-          connection.bulkTransfer(outputEndpoint, outputStream.toByteArray(), outputStream.size(),
-              0);
-        } else {
-          throw new IllegalStateException("Not in block mode");
-        }
-      }
-    });
+  /**
+   * Wrapper for USB MIDI output endpoints.
+   */
+  public class UsbMidiOutput {
+    private final UsbInterface iface;
+    private final UsbEndpoint outputEndpoint;
+    private final byte[] outBuffer;
+
+    private final UsbMidiPacketizer packetizer;
+    private final ToWireConverter toWire;
 
     private UsbMidiOutput(UsbInterface iface, UsbEndpoint ep) {
       this.iface = iface;
       outputEndpoint = ep;
       outBuffer = new byte[ep.getMaxPacketSize()];
-      setVirtualCable(0);
+      packetizer = new UsbMidiPacketizer(new UsbMidiPacketizer.PacketSink() {
+        @Override
+        public void sendPacket(byte[] buffer, int offset, int length) {
+          UsbDeviceConnection c = connection;
+          if (c == null) return;
+          if (offset > 0) {
+            // Bulk transfers with offset require API level 18.
+            System.arraycopy(buffer, offset, outBuffer, 0, length);
+            buffer = outBuffer;
+          }
+          c.bulkTransfer(outputEndpoint, buffer, length, 0);
+        }
+      }, outBuffer.length);
+      toWire = new ToWireConverter(packetizer);
     }
 
     @Override
@@ -330,7 +434,7 @@ public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
      * @param c virtual cable number
      */
     public void setVirtualCable(int c) {
-      cable = (c << 4) & 0xf0;
+      packetizer.setVirtualCable(c);
     }
 
     /**
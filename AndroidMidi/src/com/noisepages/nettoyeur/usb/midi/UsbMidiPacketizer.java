@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.usb.midi;
+
+import com.noisepages.nettoyeur.common.RawByteReceiver;
+
+/**
+ * Converter from MIDI wire format to USB MIDI event packets, following the Code Index Numbers of
+ * the USB MIDI 1.0 specification: Channel messages and system common messages become one event
+ * each. Sysex messages are split into events of three bytes. Messages may span several calls to
+ * onBytesReceived, and they may be interleaved with real time messages, which become single byte
+ * events.
+ * Anything else, such as running status, is sent one byte per event. Outside of block mode, the
+ * complete events from each call to onBytesReceived are sent right away. In block mode, events are
+ * collected in a buffer that grows as needed and is reused afterwards, and endBlock() sends them
+ * in packets of at most the maximum packet size of the endpoint.
+ *
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+class UsbMidiPacketizer implements RawByteReceiver {
+
+  /**
+   * Destination of USB packets, i.e., a bulk OUT endpoint.
+   */
+  interface PacketSink {
+
+    /**
+     * Sends a single packet. The buffer is only valid for the duration of the call.
+     *
+     * @param buffer buffer holding the packet
+     * @param offset index of the first byte of the packet
+     * @param length length of the packet, at most the packet size of the packetizer
+     */
+    void sendPacket(byte[] buffer, int offset, int length);
+  }
+
+  // USB payload size by Code Index Number.
+  static final int[] midiPayloadSize = new int[] {
+  /* 0x00 */-1, /* 0x01 */-1, // Reserved for future extensions; currently unused
+      /* 0x02 */2, /* 0x03 */3, // System common
+      /* 0x04 */3, /* 0x05 */1, /* 0x06 */2, /* 0x07 */3, // System exclusive
+      /* 0x08 */3, /* 0x09 */3, /* 0x0a */3, /* 0x0b */3, /* 0x0c */2, /* 0x0d */2, /* 0x0e */3, // Channel
+                                                                                                 // messages
+      /* 0x0f */1 // MIDI byte
+      };
+
+  private final PacketSink sink;
+  private final int packetSize;
+  private byte[] eventBuffer;
+  private int writeIndex = 0;
+  private boolean inBlock = false;
+  private volatile int cable = 0;
+  // Bytes of a message that don't make up a complete event yet, because the message spans several
+  // calls to onBytesReceived.
+  private final byte[] pending = new byte[3];
+  private int nPending = 0;
+  private boolean inSysex = false;
+  private int messageCin = 0; // CIN of the current channel or system common message, if any.
+  private int messageLength = 0; // Length of the current channel or system common message, if any.
+
+  /**
+   * Constructor.
+   *
+   * @param sink destination of USB packets
+   * @param packetSize maximum packet size, a positive multiple of four
+   */
+  UsbMidiPacketizer(PacketSink sink, int packetSize) {
+    if (packetSize < 4 || (packetSize & 0x03) != 0) {
+      throw new IllegalArgumentException("Bad packet size: " + packetSize);
+    }
+    this.sink = sink;
+    this.packetSize = packetSize;
+    eventBuffer = new byte[packetSize];
+  }
+
+  /**
+   * Sets the virtual cable to write to; the default is 0.
+   *
+   * @param c virtual cable number
+   */
+  void setVirtualCable(int c) {
+    cable = (c << 4) & 0xf0;
+  }
+
+  @Override
+  public synchronized void onBytesReceived(int nBytes, byte[] buffer) {
+    for (int start = 0, end; start < nBytes; start = end) {
+      int b = buffer[start] & 0xff;
+      end = start + 1;
+      if (b >= 0xf8) {
+        writeEvent(0x0f, b, 0, 0); // Real time messages may occur anywhere, even inside sysex.
+      } else if (b < 0x80) {
+        if (inSysex) {
+          addSysexByte(b);
+        } else if (messageLength > 0) {
+          addMessageByte(b);
+        } else {
+          writeEvent(0x0f, b, 0, 0); // Stray data byte.
+        }
+      } else if (b == 0xf7 && inSysex) {
+        endSysex();
+      } else {
+        abortMessage(); // Any other status byte cuts short an incomplete message.
+        if (b < 0xf0) {
+          for (; end < nBytes && buffer[end] >= 0; ++end);
+          processChannelMessage(buffer, start, end, end == nBytes);
+        } else {
+          processSystemByte(b);
+        }
+      }
+    }
+    if (!inBlock) {
+      flush();
+    }
+  }
+
+  private void processChannelMessage(byte[] buffer, int start, int end, boolean atEnd) {
+    int cin = (buffer[start] >> 4) & 0x0f;
+    if (atEnd && end - start < midiPayloadSize[cin]) {
+      // The rest of the message will arrive with the next call.
+      beginMessage(cin, midiPayloadSize[cin]);
+      while (start < end) {
+        addMessageByte(buffer[start++]);
+      }
+    } else if (end - start == midiPayloadSize[cin]) {
+      // The most common case: Correctly formed MIDI channel message.
+      ensureSpace();
+      eventBuffer[writeIndex++] = (byte) (cable | cin);
+      while (start < end) {
+        eventBuffer[writeIndex++] = buffer[start++];
+      }
+      while ((writeIndex & 0x03) != 0) {
+        eventBuffer[writeIndex++] = 0;
+      }
+    } else {
+      // Malformed, or running status, which USB MIDI doesn't support? Just dump single bytes.
+      while (start < end) {
+        writeEvent(0x0f, buffer[start++], 0, 0);
+      }
+    }
+  }
+
+  private void processSystemByte(int b) {
+    switch (b) {
+      case 0xf0:
+        inSysex = true;
+        addSysexByte(b);
+        break;
+      case 0xf1: // Time code.
+      case 0xf3: // Song select.
+        beginMessage(0x02, 2);
+        addMessageByte(b);
+        break;
+      case 0xf2: // Song position.
+        beginMessage(0x03, 3);
+        addMessageByte(b);
+        break;
+      case 0xf6: // Tune request.
+        writeEvent(0x05, b, 0, 0);
+        break;
+      default: // Undefined system common bytes and stray ends of sysex.
+        writeEvent(0x0f, b, 0, 0);
+        break;
+    }
+  }
+
+  // Sysex bytes go out three at a time (CIN 0x04), as soon as they are available, so that sysex
+  // messages may span several calls to onBytesReceived.
+  private void addSysexByte(int b) {
+    pending[nPending++] = (byte) b;
+    if (nPending == 3) {
+      writeEvent(0x04, pending[0], pending[1], pending[2]);
+      nPending = 0;
+    }
+  }
+
+  // The last one to three bytes of a sysex message, including 0xf7, go out with CIN 0x05-0x07.
+  private void endSysex() {
+    pending[nPending++] = (byte) 0xf7;
+    writeEvent(0x04 + nPending, pending[0], (nPending > 1) ? pending[1] : 0,
+        (nPending > 2) ? pending[2] : 0);
+    nPending = 0;
+    inSysex = false;
+  }
+
+  private void beginMessage(int cin, int length) {
+    messageCin = cin;
+    messageLength = length;
+  }
+
+  private void addMessageByte(int b) {
+    pending[nPending++] = (byte) b;
+    if (nPending == messageLength) {
+      writeEvent(messageCin, pending[0], pending[1], (messageLength > 2) ? pending[2] : 0);
+      nPending = 0;
+      messageLength = 0;
+    }
+  }
+
+  // Sends the bytes of an incomplete message one at a time.
+  private void abortMessage() {
+    for (int i = 0; i < nPending; i++) {
+      writeEvent(0x0f, pending[i], 0, 0);
+    }
+    nPending = 0;
+    messageLength = 0;
+    inSysex = false;
+  }
+
+  private void writeEvent(int cin, int a, int b, int c) {
+    ensureSpace();
+    eventBuffer[writeIndex++] = (byte) (cable | cin);
+    eventBuffer[writeIndex++] = (byte) a;
+    eventBuffer[writeIndex++] = (byte) b;
+    eventBuffer[writeIndex++] = (byte) c;
+  }
+
+  // Makes room for one more event; in block mode, the buffer grows instead of being flushed.
+  private void ensureSpace() {
+    if (writeIndex < eventBuffer.length) return;
+    if (inBlock) {
+      byte[] newBuffer = new byte[eventBuffer.length * 2];
+      System.arraycopy(eventBuffer, 0, newBuffer, 0, writeIndex);
+      eventBuffer = newBuffer;
+    } else {
+      flush();
+    }
+  }
+
+  private void flush() {
+    for (int offset = 0; offset < writeIndex; offset += packetSize) {
+      sink.sendPacket(eventBuffer, offset, Math.min(packetSize, writeIndex - offset));
+    }
+    writeIndex = 0;
+  }
+
+  @Override
+  public synchronized boolean beginBlock() {
+    inBlock = true;
+    return true;
+  }
+
+  @Override
+  public synchronized void endBlock() {
+    if (!inBlock) {
+      throw new IllegalStateException("Not in block mode");
+    }
+    inBlock = false;
+    flush();
+  }
+}
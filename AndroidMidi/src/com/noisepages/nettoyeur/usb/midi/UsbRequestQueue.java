@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.usb.midi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal abstraction of asynchronous USB requests against a single IN endpoint, i.e., the subset of
+ * UsbRequest and UsbDeviceConnection.requestWait that {@link QueuedInputEngine} needs. Requests are
+ * identified by slot numbers so that implementations can avoid allocating on completion.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+interface UsbRequestQueue {
+
+  /**
+   * Queues a read request.
+   * 
+   * @param slot index of the request, ranging from 0 to the number of requests minus one
+   * @param buffer buffer to read into, starting at position zero
+   * @return true on success
+   */
+  boolean queue(int slot, ByteBuffer buffer);
+
+  /**
+   * Blocks until a queued request completes. If the request reports the number of bytes read, the
+   * position of the buffer will be set accordingly; otherwise the position will remain zero.
+   * 
+   * @return slot of the completed request, or -1 on error
+   */
+  int await();
+
+  /**
+   * Cancels all pending requests. Cancelled requests complete, i.e., they will be returned by
+   * await().
+   */
+  void cancel();
+}
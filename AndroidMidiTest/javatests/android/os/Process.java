@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+/**
+ * Stand-in for the Android class, so that code that sets thread priorities can run in tests on
+ * the JVM, where the Android stubs throw. Priorities are ignored.
+ */
+public class Process {
+
+  public static final int THREAD_PRIORITY_BACKGROUND = 10;
+  public static final int THREAD_PRIORITY_AUDIO = -16;
+  public static final int THREAD_PRIORITY_URGENT_AUDIO = -19;
+
+  public static void setThreadPriority(int priority) {}
+}
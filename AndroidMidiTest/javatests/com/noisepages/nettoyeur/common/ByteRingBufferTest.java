@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.common.ByteRingBuffer.OverflowPolicy;
+
+public class ByteRingBufferTest {
+
+  private final byte[] out = new byte[16];
+
+  @Test
+  public void testWrapAround() {
+    ByteRingBuffer ring = new ByteRingBuffer(8, OverflowPolicy.DROP);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(ring.write(new byte[] {(byte) i, (byte) (i + 1), (byte) (i + 2)}, 0, 3));
+      assertEquals(3, ring.available());
+      assertEquals(3, ring.read(out, 0, out.length));
+      assertArrayEquals(new byte[] {(byte) i, (byte) (i + 1), (byte) (i + 2)},
+          Arrays.copyOf(out, 3));
+    }
+    assertEquals(0, ring.read(out, 0, out.length));
+  }
+
+  @Test
+  public void testDrop() {
+    ByteRingBuffer ring = new ByteRingBuffer(4, OverflowPolicy.DROP);
+    assertTrue(ring.write(new byte[] {1, 2, 3}, 0, 3));
+    assertFalse(ring.write(new byte[] {4, 5}, 0, 2));
+    assertTrue(ring.write(new byte[] {6}, 0, 1));
+    assertEquals(4, ring.read(out, 0, out.length));
+    assertArrayEquals(new byte[] {1, 2, 3, 6}, Arrays.copyOf(out, 4));
+  }
+
+  @Test
+  public void testOverwrite() {
+    ByteRingBuffer ring = new ByteRingBuffer(4, OverflowPolicy.OVERWRITE);
+    assertTrue(ring.write(new byte[] {1, 2, 3}, 0, 3));
+    assertTrue(ring.write(new byte[] {4, 5}, 0, 2));
+    assertEquals(4, ring.read(out, 0, out.length));
+    assertArrayEquals(new byte[] {2, 3, 4, 5}, Arrays.copyOf(out, 4));
+  }
+
+  @Test
+  public void testBlock() throws InterruptedException {
+    final ByteRingBuffer ring = new ByteRingBuffer(4, OverflowPolicy.BLOCK);
+    assertTrue(ring.write(new byte[] {1, 2, 3}, 0, 3));
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        ring.write(new byte[] {4, 5}, 0, 2);
+      }
+    };
+    writer.start();
+    Thread.sleep(20);
+    assertTrue(writer.isAlive());
+    assertEquals(2, ring.read(out, 0, 2));
+    writer.join(1000);
+    assertFalse(writer.isAlive());
+    assertEquals(3, ring.read(out, 0, out.length));
+    assertArrayEquals(new byte[] {3, 4, 5}, Arrays.copyOf(out, 3));
+  }
+
+  @Test
+  public void testCloseReleasesBlockedWriter() throws InterruptedException {
+    final ByteRingBuffer ring = new ByteRingBuffer(4, OverflowPolicy.BLOCK);
+    final boolean[] result = new boolean[] {true};
+    ring.write(new byte[4], 0, 4);
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        result[0] = ring.write(new byte[1], 0, 1);
+      }
+    };
+    writer.start();
+    Thread.sleep(20);
+    ring.close();
+    writer.join(1000);
+    assertFalse(writer.isAlive());
+    assertFalse(result[0]);
+    assertEquals(4, ring.available());
+  }
+
+  @Test
+  public void testConcurrentOverwrite() throws InterruptedException {
+    // Every write is a run of identical bytes; the reader must never see a torn run.
+    final ByteRingBuffer ring = new ByteRingBuffer(64, OverflowPolicy.OVERWRITE);
+    final int nWrites = 100000;
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        byte[] run = new byte[8];
+        for (int i = 0; i < nWrites; i++) {
+          Arrays.fill(run, (byte) i);
+          ring.write(run, 0, run.length);
+        }
+      }
+    };
+    writer.start();
+    byte[] chunk = new byte[8];
+    while (writer.isAlive() || ring.available() > 0) {
+      if (ring.read(chunk, 0, chunk.length) == chunk.length) {
+        for (int i = 1; i < chunk.length; i++) {
+          assertEquals(chunk[0], chunk[i]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.common.ByteRingBuffer.OverflowPolicy;
+
+public class CoalescingOutputStreamTest {
+
+  private static class RecordingStream extends OutputStream {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    int nWrites = 0;
+    volatile boolean failing = false;
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int count) throws IOException {
+      if (failing) {
+        throw new IOException("Connection lost");
+      }
+      bytes.write(buffer, offset, count);
+      nWrites++;
+    }
+  }
+
+  @Test
+  public void testCoalescing() throws IOException {
+    RecordingStream recorder = new RecordingStream();
+    CoalescingOutputStream out =
+        new CoalescingOutputStream(recorder, 1024, OverflowPolicy.BLOCK, 50);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (int i = 0; i < 100; i++) {
+      byte[] message = new byte[] {(byte) 0x90, (byte) i, 0x7f};
+      out.write(message, 0, message.length);
+      expected.write(message, 0, message.length);
+    }
+    out.flush();
+    assertArrayEquals(expected.toByteArray(), recorder.bytes.toByteArray());
+    assertTrue(recorder.nWrites < 10);
+    out.close();
+  }
+
+  @Test
+  public void testFlushCutsDelayShort() throws IOException {
+    RecordingStream recorder = new RecordingStream();
+    CoalescingOutputStream out =
+        new CoalescingOutputStream(recorder, 1024, OverflowPolicy.BLOCK, 10000);
+    out.write(new byte[] {(byte) 0x90, 60, 0x7f});
+    long start = System.nanoTime();
+    out.flush();
+    assertTrue(System.nanoTime() - start < 1000000000L);
+    assertArrayEquals(new byte[] {(byte) 0x90, 60, 0x7f}, recorder.bytes.toByteArray());
+    out.close();
+  }
+
+  @Test
+  public void testNoDelay() throws IOException {
+    RecordingStream recorder = new RecordingStream();
+    CoalescingOutputStream out = new CoalescingOutputStream(recorder, 16, OverflowPolicy.BLOCK, 0);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (int i = 0; i < 1000; i++) {
+      out.write(i);
+      expected.write(i);
+    }
+    byte[] large = new byte[40]; // Larger than the queue.
+    out.write(large);
+    expected.write(large);
+    out.close();
+    assertArrayEquals(expected.toByteArray(), recorder.bytes.toByteArray());
+  }
+
+  @Test
+  public void testError() throws IOException {
+    RecordingStream recorder = new RecordingStream();
+    recorder.failing = true;
+    CoalescingOutputStream out = new CoalescingOutputStream(recorder, 16, OverflowPolicy.BLOCK, 0);
+    out.write(new byte[] {1, 2, 3});
+    try {
+      out.flush();
+      fail("Expected IOException");
+    } catch (IOException e) {
+      assertEquals("Connection lost", e.getMessage());
+    }
+    try {
+      out.write(new byte[] {4});
+      fail("Expected IOException");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class InputStreamPumpTest {
+
+  /**
+   * Stand-in for the input stream of a Bluetooth socket; delivers data in bursts of given sizes and
+   * then either reaches the end of the stream or fails.
+   */
+  private static class FakeSocketStream extends InputStream {
+    private final byte[] data;
+    private final int[] bursts;
+    private final boolean fail;
+    private int position = 0;
+    private int burst = 0;
+
+    FakeSocketStream(byte[] data, int[] bursts, boolean fail) {
+      this.data = data;
+      this.bursts = bursts;
+      this.fail = fail;
+    }
+
+    @Override
+    public int read() throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+      if (burst == bursts.length) {
+        if (fail) {
+          throw new IOException("Connection reset");
+        }
+        return -1;
+      }
+      int n = Math.min(count, bursts[burst]);
+      System.arraycopy(data, position, buffer, offset, n);
+      position += n;
+      bursts[burst] -= n;
+      if (bursts[burst] == 0) {
+        burst++;
+      }
+      return n;
+    }
+  }
+
+  private static class RecordingReceiver implements RawByteReceiver {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    int nCalls = 0;
+
+    @Override
+    public void onBytesReceived(int nBytes, byte[] buffer) {
+      bytes.write(buffer, 0, nBytes);
+      nCalls++;
+    }
+
+    @Override
+    public boolean beginBlock() {
+      return false;
+    }
+
+    @Override
+    public void endBlock() {}
+  }
+
+  @Test
+  public void testEndOfStream() throws IOException {
+    byte[] data = createData(9);
+    RecordingReceiver receiver = new RecordingReceiver();
+    InputStreamPump pump =
+        new InputStreamPump(new FakeSocketStream(data, new int[] {3, 6}, false), receiver, 16, 16);
+    pump.run(); // Must return rather than pass -1 on to the receiver.
+    assertArrayEquals(data, receiver.bytes.toByteArray());
+    assertEquals(2, receiver.nCalls);
+  }
+
+  @Test
+  public void testError() {
+    RecordingReceiver receiver = new RecordingReceiver();
+    InputStreamPump pump =
+        new InputStreamPump(new FakeSocketStream(createData(3), new int[] {3}, true), receiver, 16,
+            16);
+    try {
+      pump.run();
+      fail("Expected IOException");
+    } catch (IOException e) {
+      assertEquals(3, receiver.bytes.size());
+    }
+  }
+
+  @Test
+  public void testGrowth() throws IOException {
+    byte[] data = createData(4096 + 3);
+    RecordingReceiver receiver = new RecordingReceiver();
+    InputStreamPump pump =
+        new InputStreamPump(new FakeSocketStream(data, new int[] {4096, 3}, false), receiver, 64,
+            1024);
+    pump.run();
+    assertArrayEquals(data, receiver.bytes.toByteArray());
+    assertEquals(1024, pump.getBufferSize());
+    // 64 + 128 + 256 + 512 bytes while growing, then 3 * 1024 + 64 bytes, then the last burst.
+    assertEquals(4 + 4 + 1, receiver.nCalls);
+  }
+
+  @Test
+  public void testSmallMessagesDontGrowBuffer() throws IOException {
+    int[] bursts = new int[100];
+    for (int i = 0; i < bursts.length; i++) {
+      bursts[i] = 3;
+    }
+    RecordingReceiver receiver = new RecordingReceiver();
+    InputStreamPump pump =
+        new InputStreamPump(new FakeSocketStream(createData(300), bursts, false), receiver, 64,
+            1024);
+    pump.run();
+    assertEquals(64, pump.getBufferSize());
+    assertEquals(100, receiver.nCalls);
+  }
+
+  @Test
+  public void testStress() throws IOException, InterruptedException {
+    final byte[] data = createData(1 << 18);
+    final PipedOutputStream sender = new PipedOutputStream();
+    PipedInputStream in = new PipedInputStream(sender, 1 << 14);
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        Random random = new Random(1);
+        try {
+          for (int i = 0; i < data.length;) {
+            int n = Math.min(data.length - i, 1 + random.nextInt(random.nextBoolean() ? 8 : 2048));
+            sender.write(data, i, n);
+            i += n;
+          }
+          sender.close();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    writer.start();
+    RecordingReceiver receiver = new RecordingReceiver();
+    new InputStreamPump(in, receiver, 64, 4096).run();
+    writer.join();
+    assertArrayEquals(data, receiver.bytes.toByteArray());
+  }
+
+  private static byte[] createData(int n) {
+    byte[] data = new byte[n];
+    new Random(42).nextBytes(data);
+    return data;
+  }
+}
@@ -181,6 +181,34 @@ public class FromWireConverterTest {
     EasyMock.verify(receiver);
   }
 
+  @Test
+  public void testRealTimeWithRunningStatus() {
+    receiver.onControlChange(0x02, 0x07, 0x10);
+    receiver.onRawByte((byte) 0xf8);
+    receiver.onControlChange(0x02, 0x07, 0x11);
+    receiver.onControlChange(0x02, 0x07, 0x12);
+    receiver.onRawByte((byte) 0xfe);
+    receiver.onControlChange(0x02, 0x07, 0x13);
+    EasyMock.replay(receiver);
+    byte[] msg =
+        new byte[] {(byte) 0xb2, 0x07, 0x10, (byte) 0xf8, 0x07, 0x11, 0x07, 0x12, 0x07,
+            (byte) 0xfe, 0x13};
+    converter.onBytesReceived(msg.length, msg);
+    EasyMock.verify(receiver);
+  }
+
+  @Test
+  public void testOffset() {
+    receiver.onNoteOn(0x03, 0x40, 0x7f);
+    receiver.onNoteOn(0x03, 0x41, 0x00);
+    EasyMock.replay(receiver);
+    // USB MIDI events; the payload starts after the header byte.
+    byte[] packets = new byte[] {0x09, (byte) 0x93, 0x40, 0x7f, 0x09, 0x41, 0x00, 0x00};
+    converter.onBytesReceived(3, packets, 1);
+    converter.onBytesReceived(2, packets, 5);
+    EasyMock.verify(receiver);
+  }
+
   @Test
   public void testIdentity() { // Somewhat redundant, but it's satisfying to see this work.
     ToWireConverter identity = new ToWireConverter(converter);
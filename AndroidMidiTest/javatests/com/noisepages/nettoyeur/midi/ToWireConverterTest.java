@@ -14,6 +14,12 @@
 
 package com.noisepages.nettoyeur.midi;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
@@ -198,4 +204,142 @@ public class ToWireConverterTest {
     identity.onBytesReceived(msg8.length, msg8);
     EasyMock.verify(receiver);
   }
+
+  @Test
+  public void testRunningStatus() {
+    converter.setRunningStatus(true);
+    byte[] msg = new byte[] {(byte) 0x90, 0x48, 0x7f};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {0x4c, 0x7f};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {(byte) 0xf8};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {0x48, 0x00};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {(byte) 0x91, 0x48, 0x00};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {(byte) 0xc1, 0x10};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {0x11};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    EasyMock.replay(receiver);
+    converter.onNoteOn(0x00, 0x48, 0x7f);
+    converter.onNoteOn(0x00, 0x4c, 0x7f);
+    converter.onRawByte((byte) 0xf8); // Real time messages don't cancel running status.
+    converter.onNoteOn(0x00, 0x48, 0x00);
+    converter.onNoteOn(0x01, 0x48, 0x00);
+    converter.onProgramChange(0x01, 0x10);
+    converter.onProgramChange(0x01, 0x11);
+    EasyMock.verify(receiver);
+  }
+
+  @Test
+  public void testRunningStatusReset() {
+    converter.setRunningStatus(true);
+    byte[] msg = new byte[] {(byte) 0xb0, 0x07, 0x10};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {(byte) 0xf0};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {(byte) 0x01};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {(byte) 0xf7};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {(byte) 0xb0, 0x07, 0x11};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
+    msg = new byte[] {0x07, 0x12};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    receiver.endBlock();
+    msg = new byte[] {(byte) 0xb0, 0x07, 0x13};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {(byte) 0xb0, 0x07, 0x14};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {(byte) 0xb0, 0x07, 0x15};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    EasyMock.replay(receiver);
+    converter.onControlChange(0x00, 0x07, 0x10);
+    converter.onRawByte((byte) 0xf0);
+    converter.onRawByte((byte) 0x01);
+    converter.onRawByte((byte) 0xf7);
+    converter.onControlChange(0x00, 0x07, 0x11);
+    converter.beginBlock();
+    converter.onControlChange(0x00, 0x07, 0x12);
+    converter.endBlock();
+    converter.onControlChange(0x00, 0x07, 0x13);
+    converter.setRunningStatus(false);
+    converter.onControlChange(0x00, 0x07, 0x14);
+    converter.onControlChange(0x00, 0x07, 0x15);
+    EasyMock.verify(receiver);
+  }
+
+  @Test
+  public void testRunningStatusIdentity() {
+    MidiReceiver midiReceiver = EasyMock.createStrictMock(MidiReceiver.class);
+    ToWireConverter toWire = new ToWireConverter(new FromWireConverter(midiReceiver));
+    toWire.setRunningStatus(true);
+    midiReceiver.onNoteOn(0x03, 0x40, 0x7f);
+    midiReceiver.onNoteOn(0x03, 0x43, 0x7f);
+    midiReceiver.onPitchBend(0x03, -2);
+    midiReceiver.onRawByte((byte) 0xf8);
+    midiReceiver.onPitchBend(0x03, 5);
+    midiReceiver.onAftertouch(0x03, 0x10);
+    midiReceiver.onAftertouch(0x03, 0x11);
+    EasyMock.replay(midiReceiver);
+    toWire.onNoteOn(0x03, 0x40, 0x7f);
+    toWire.onNoteOn(0x03, 0x43, 0x7f);
+    toWire.onPitchBend(0x03, -2);
+    toWire.onRawByte((byte) 0xf8);
+    toWire.onPitchBend(0x03, 5);
+    toWire.onAftertouch(0x03, 0x10);
+    toWire.onAftertouch(0x03, 0x11);
+    EasyMock.verify(midiReceiver);
+  }
+
+  @Test
+  public void testNoAllocation() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    final int[] count = new int[1];
+    ToWireConverter counting = new ToWireConverter(new RawByteReceiver() {
+      @Override
+      public void onBytesReceived(int nBytes, byte[] buffer) {
+        count[0] += nBytes;
+      }
+
+      @Override
+      public boolean beginBlock() {
+        return false;
+      }
+
+      @Override
+      public void endBlock() {}
+    });
+    int nMessages = 100000;
+    sendMessages(counting, nMessages); // Warm up.
+    long tid = Thread.currentThread().getId();
+    long before = threadBean.getThreadAllocatedBytes(tid);
+    sendMessages(counting, nMessages);
+    long allocated = threadBean.getThreadAllocatedBytes(tid) - before;
+    // Allow for a few bytes of measurement overhead, but nothing that scales with the number of
+    // messages.
+    assertEquals(0, allocated / nMessages);
+    assertEquals(2 * 20 * nMessages, count[0]);
+  }
+
+  private void sendMessages(ToWireConverter converter, int nMessages) {
+    for (int i = 0; i < nMessages; i++) {
+      int ch = i & 0x0f;
+      converter.onNoteOn(ch, 0x40, 0x7f);
+      converter.onNoteOff(ch, 0x40, 0x00);
+      converter.onPolyAftertouch(ch, 0x40, 0x10);
+      converter.onControlChange(ch, 0x07, i & 0x7f);
+      converter.onProgramChange(ch, 0x10);
+      converter.onAftertouch(ch, 0x20);
+      converter.onPitchBend(ch, 0x100);
+      converter.onRawByte((byte) 0xf8);
+    }
+  }
 }
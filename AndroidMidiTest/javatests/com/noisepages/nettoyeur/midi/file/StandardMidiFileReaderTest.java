@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.file;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StandardMidiFileReaderTest {
+
+  private final StandardMidiFileReader reader = new StandardMidiFileReader();
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  // Returns a track chunk with the given events; values are truncated to bytes.
+  static byte[] track(int... events) {
+    byte[] data = new byte[events.length];
+    for (int i = 0; i < events.length; i++) {
+      data[i] = (byte) events[i];
+    }
+    return chunk('M', 'T', 'r', 'k', data);
+  }
+
+  static byte[] chunk(char a, char b, char c, char d, byte[] data) {
+    ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+    chunk.write(a);
+    chunk.write(b);
+    chunk.write(c);
+    chunk.write(d);
+    writeInt(chunk, data.length);
+    chunk.write(data, 0, data.length);
+    return chunk.toByteArray();
+  }
+
+  // Returns a type 1 file with a resolution of 96 ticks per quarter note.
+  static byte[] file(byte[]... tracks) {
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    byte[] header = new byte[] {'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 1, 0, (byte) tracks.length, 0, 96};
+    file.write(header, 0, header.length);
+    for (byte[] track : tracks) {
+      file.write(track, 0, track.length);
+    }
+    return file.toByteArray();
+  }
+
+  // Returns a track with a system exclusive message and a text meta message, each with the given
+  // number of data bytes.
+  static byte[] longMessageTrack(int length) {
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    data.write(0);
+    data.write(0xf0);
+    writeVarInt(data, length);
+    for (int i = 0; i < length; i++) {
+      data.write(i & 0x7f);
+    }
+    data.write(0);
+    data.write(0xff);
+    data.write(0x01);
+    writeVarInt(data, length);
+    for (int i = 0; i < length; i++) {
+      data.write('a' + i % 26);
+    }
+    data.write(0);
+    data.write(0xff);
+    data.write(0x2f);
+    data.write(0);
+    return chunk('M', 'T', 'r', 'k', data.toByteArray());
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, int n) {
+    for (int shift = 28; shift > 0; shift -= 7) {
+      if ((n >> shift) != 0) {
+        out.write(((n >> shift) & 0x7f) | 0x80);
+      }
+    }
+    out.write(n & 0x7f);
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int n) {
+    out.write(n >> 24);
+    out.write(n >> 16);
+    out.write(n >> 8);
+    out.write(n);
+  }
+
+  // A tempo track and three instrument tracks with running status, program changes, pitch bends,
+  // and system exclusive messages.
+  static byte[] multiTrackFile() {
+    byte[] tempo = track(
+        0, 0xff, 0x51, 3, 0x07, 0xa1, 0x20,
+        0, 0xff, 0x03, 5, 'T', 'e', 'm', 'p', 'o',
+        0x83, 0x00, 0xff, 0x51, 3, 0x03, 0xd0, 0x90,
+        0, 0xff, 0x2f, 0);
+    byte[] piano = track(
+        0, 0xc0, 0,
+        0, 0x90, 60, 100,
+        48, 64, 100, // running status
+        48, 60, 0,
+        0, 64, 0,
+        0x81, 0x40, 0x80, 67, 64,
+        0, 0xff, 0x2f, 0);
+    byte[] bass = track(
+        0, 0xf0, 5, 0x7e, 0x7f, 0x09, 0x01, 0xf7,
+        10, 0xc1, 33,
+        0, 0xb1, 7, 90,
+        0, 0x91, 36, 110,
+        24, 0xe1, 0x00, 0x50,
+        24, 0xe1, 0x00, 0x40,
+        48, 0x81, 36, 0,
+        0, 0xff, 0x2f, 0);
+    byte[] drums = track(
+        0, 0x99, 36, 127,
+        0, 42, 80,
+        96, 0x89, 36, 0,
+        0, 42, 0,
+        0, 0xf7, 2, 0x43, 0x12,
+        0, 0xa9, 42, 20,
+        0, 0xd9, 30,
+        0, 0xff, 0x2f, 0);
+    return file(tempo, piano, bass, drums);
+  }
+
+  static void assertSequenceEquals(Sequence expected, Sequence actual) {
+    assertEquals(expected.getDivisionType(), actual.getDivisionType(), 0);
+    assertEquals(expected.getResolution(), actual.getResolution());
+    Track[] expectedTracks = expected.getTracks();
+    Track[] actualTracks = actual.getTracks();
+    assertEquals(expectedTracks.length, actualTracks.length);
+    for (int i = 0; i < expectedTracks.length; i++) {
+      Track expectedTrack = expectedTracks[i];
+      Track actualTrack = actualTracks[i];
+      assertEquals("track " + i, expectedTrack.size(), actualTrack.size());
+      for (int j = 0; j < expectedTrack.size(); j++) {
+        MidiEvent expectedEvent = expectedTrack.get(j);
+        MidiEvent actualEvent = actualTrack.get(j);
+        String where = "track " + i + ", event " + j;
+        assertEquals(where, expectedEvent.getTick(), actualEvent.getTick());
+        MidiMessage expectedMessage = expectedEvent.getMessage();
+        MidiMessage actualMessage = actualEvent.getMessage();
+        assertEquals(where, expectedMessage.getStatus(), actualMessage.getStatus());
+        assertEquals(where, expectedMessage.getLength(), actualMessage.getLength());
+        assertArrayEquals(where, expectedMessage.getMessage(), actualMessage.getMessage());
+      }
+    }
+  }
+
+  // Asserts that the concurrent reader fails in the same way as the stream reader.
+  private void assertSameFailure(byte[] file) throws Exception {
+    Exception expected = null;
+    try {
+      reader.getSequence(new ByteArrayInputStream(file));
+      fail("The stream reader accepted a corrupt file");
+    } catch (Exception e) {
+      expected = e;
+    }
+    try {
+      reader.getSequence(ByteBuffer.wrap(file), executor);
+      fail("The concurrent reader accepted a corrupt file");
+    } catch (Exception e) {
+      assertEquals(expected.getClass(), e.getClass());
+      assertEquals(expected.getMessage(), e.getMessage());
+    }
+  }
+
+  @Test
+  public void testConcurrentReaderMatchesStreamReader() throws Exception {
+    byte[] file = multiTrackFile();
+    Sequence expected = reader.getSequence(new ByteArrayInputStream(file));
+    assertEquals(4, expected.getTracks().length);
+    assertSequenceEquals(expected, reader.getSequence(ByteBuffer.wrap(file), executor));
+  }
+
+  @Test
+  public void testConcurrentReaderWithManyTracks() throws Exception {
+    // More tracks than threads, so that later tracks may finish before earlier ones.
+    byte[][] tracks = new byte[16][];
+    for (int i = 0; i < tracks.length; i++) {
+      tracks[i] = track(0, 0x90 | (i & 0x0f), 60 + i, 100, 96 + i, 0x80 | (i & 0x0f), 60 + i, 0,
+          0, 0xff, 0x2f, 0);
+    }
+    byte[] file = file(tracks);
+    assertSequenceEquals(reader.getSequence(new ByteArrayInputStream(file)),
+        reader.getSequence(ByteBuffer.wrap(file), executor));
+  }
+
+  @Test
+  public void testFirstCorruptTrackWins() throws Exception {
+    byte[] good = track(0, 0x90, 60, 100, 96, 0x80, 60, 0, 0, 0xff, 0x2f, 0);
+    byte[] badStatus = track(0, 0x90, 60, 100, 96, 0xf4, 0, 0xff, 0x2f, 0);
+    byte[] truncated = track(0, 0x90, 60, 100, 96, 0x80, 60);
+    byte[] noStatus = track(0, 60, 100, 0, 0xff, 0x2f, 0);
+
+    assertSameFailure(file(good, badStatus, good, truncated));
+    assertSameFailure(file(good, truncated, good, badStatus));
+    assertSameFailure(file(noStatus, good, truncated, badStatus));
+  }
+
+  @Test
+  public void testMappedReaderMatchesStreamReader() throws Exception {
+    byte[][] files = new byte[][] {multiTrackFile(),
+        file(longMessageTrack(127), longMessageTrack(128), longMessageTrack(200)),
+        file(longMessageTrack(16383), longMessageTrack(16384))};
+    for (byte[] file : files) {
+      assertSequenceEquals(reader.getSequence(new ByteArrayInputStream(file)),
+          reader.getSequence(ByteBuffer.wrap(file)));
+    }
+  }
+
+  @Test
+  public void testLongMappedMessages() throws Exception {
+    for (int length : new int[] {0, 1, 127, 128, 200, 16383, 16384}) {
+      byte[] data = new byte[length];
+      for (int i = 0; i < length; i++) {
+        data[i] = (byte) ('a' + i % 26);
+      }
+      MetaMessage expected = new MetaMessage();
+      expected.setMessage(0x01, data, length);
+
+      // The message starts at an offset, like in a track.
+      ByteBuffer buffer = ByteBuffer.allocate(length + 10);
+      buffer.position(7);
+      buffer.put(data);
+      MappedMetaMessage actual = new MappedMetaMessage(0x01, buffer, 7, length);
+      assertEquals("length " + length, expected.getLength(), actual.getLength());
+      assertArrayEquals("length " + length, expected.getMessage(), actual.getMessage());
+      assertArrayEquals("length " + length, data, actual.getData());
+      assertEquals(0x01, actual.getType());
+    }
+  }
+
+  @Test
+  public void testDataBuffer() throws Exception {
+    byte[] file = file(longMessageTrack(200));
+    Track track = reader.getSequence(ByteBuffer.wrap(file)).getTracks()[0];
+    SysexMessage sysex = (SysexMessage) track.get(0).getMessage();
+    MetaMessage meta = (MetaMessage) track.get(1).getMessage();
+    assertTrue(sysex instanceof MappedSysexMessage);
+    assertTrue(meta instanceof MappedMetaMessage);
+    assertDataBuffer(sysex.getData(), sysex.getDataBuffer());
+    assertDataBuffer(meta.getData(), meta.getDataBuffer());
+    assertEquals(200, meta.getData().length);
+    assertEquals('a', meta.getData()[0]);
+    assertEquals('a' + 199 % 26, meta.getData()[199]);
+
+    // Replacing a message detaches it from the buffer.
+    meta.setMessage(0x02, new byte[] {1, 2, 3}, 3);
+    assertDataBuffer(new byte[] {1, 2, 3}, meta.getDataBuffer());
+  }
+
+  private static void assertDataBuffer(byte[] expected, ByteBuffer buffer) {
+    assertTrue(buffer.isReadOnly());
+    assertEquals(0, buffer.position());
+    assertEquals(expected.length, buffer.limit());
+    assertEquals(expected.length, buffer.capacity());
+    byte[] actual = new byte[buffer.remaining()];
+    buffer.duplicate().get(actual);
+    assertArrayEquals(expected, actual);
+  }
+
+  @Test
+  public void testTruncatedChunks() throws Exception {
+    byte[] truncatedSysex = track(0, 0x90, 60, 100, 0, 0xf0, 0x81, 0x48, 1, 2, 3);
+    byte[] truncatedMeta = track(0, 0x90, 60, 100, 0, 0xff, 0x01, 0x81, 0x00, 'a', 'b');
+    byte[] truncatedEvent = track(0, 0x90, 60, 100, 96, 0x80, 60);
+    byte[] truncatedVarInt = track(0, 0x90, 60, 100, 0x81);
+    for (byte[] track : new byte[][] {truncatedSysex, truncatedMeta, truncatedEvent,
+        truncatedVarInt}) {
+      byte[] file = file(track);
+      try {
+        reader.getSequence(ByteBuffer.wrap(file));
+        fail("The mapped reader accepted a truncated chunk");
+      } catch (EOFException e) {
+        // Expected.
+      }
+      try {
+        reader.getSequence(new ByteArrayInputStream(file));
+        fail("The stream reader accepted a truncated chunk");
+      } catch (EOFException e) {
+        // Expected.
+      }
+    }
+  }
+}
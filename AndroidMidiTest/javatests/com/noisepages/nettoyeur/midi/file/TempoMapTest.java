@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TempoMapTest {
+
+  private static final int RESOLUTION = 96;
+
+  // The linear walk that MidiUtils used before the tempo map, without the snapshot, and with a long
+  // accumulator where the old code used an int.
+  private static long tick2microsecond(long[] ticks, int[] tempos, long tick) {
+    long us = 0;
+    int i = 1;
+    while (i < ticks.length && ticks[i] <= tick) {
+      us += MidiUtils.ticks2microsec(ticks[i] - ticks[i - 1], tempos[i - 1], RESOLUTION);
+      i++;
+    }
+    return us + MidiUtils.ticks2microsec(tick - ticks[i - 1], tempos[i - 1], RESOLUTION);
+  }
+
+  // Returns the tick and the tempo at the given time, like the old walk.
+  private static long[] microsecond2tick(long[] ticks, int[] tempos, long micros) {
+    long us = 0;
+    long tick = 0;
+    int i = 1;
+    if (micros > 0) {
+      while (i < ticks.length) {
+        long nextTime =
+            us + MidiUtils.ticks2microsec(ticks[i] - ticks[i - 1], tempos[i - 1], RESOLUTION);
+        if (nextTime > micros) {
+          break;
+        }
+        us = nextTime;
+        i++;
+      }
+      tick = ticks[i - 1] + MidiUtils.microsec2ticks(micros - us, tempos[i - 1], RESOLUTION);
+    }
+    return new long[] {tick, tempos[i - 1]};
+  }
+
+  private static int tempoAt(long[] ticks, int[] tempos, long tick) {
+    for (int i = 0; i < ticks.length; i++) {
+      if (ticks[i] > tick) {
+        return tempos[Math.max(0, i - 1)];
+      }
+    }
+    return tempos[tempos.length - 1];
+  }
+
+  private static Sequence sequence(long[] ticks, int[] tempos) throws Exception {
+    Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+    Track track = sequence.createTrack();
+    for (int i = 0; i < ticks.length; i++) {
+      MetaMessage tempo = new MetaMessage();
+      int mpq = tempos[i];
+      tempo.setMessage(MidiUtils.META_TEMPO_TYPE,
+          new byte[] {(byte) (mpq >> 16), (byte) (mpq >> 8), (byte) mpq}, 3);
+      track.add(new MidiEvent(tempo, ticks[i]));
+    }
+    return sequence;
+  }
+
+  // Returns ticks around each tempo change, before the first one, and well after the last one.
+  private static List<Long> interestingTicks(long[] ticks) {
+    List<Long> values = new ArrayList<Long>();
+    values.add(0L);
+    values.add(1L);
+    for (long tick : ticks) {
+      for (long d = -2; d <= 2; d++) {
+        if (tick + d >= 0) {
+          values.add(tick + d);
+        }
+      }
+    }
+    long last = ticks[ticks.length - 1];
+    values.add(last + RESOLUTION);
+    values.add(last + 1000000);
+    return values;
+  }
+
+  // Checks tick and time conversions in both directions, as well as tempo lookups, against the
+  // linear walk; the expected tempo map is the one that the tempo cache should derive from the
+  // sequence.
+  private static void assertMatchesLinearWalk(Sequence sequence, long[] ticks, int[] tempos) {
+    MidiUtils.TempoCache cache = new MidiUtils.TempoCache(sequence);
+    TempoMap map = cache.getTempoMap(RESOLUTION);
+    assertEquals(ticks.length, map.size());
+    for (long tick : interestingTicks(ticks)) {
+      long micros = tick2microsecond(ticks, tempos, tick);
+      assertEquals("tick " + tick, micros, map.tickToMicrosecond(tick));
+      assertEquals("tick " + tick, micros, MidiUtils.tick2microsecond(sequence, tick, cache));
+      assertEquals("tick " + tick, tempoAt(ticks, tempos, tick), map.getTempoMPQAt(tick));
+      assertEquals("tick " + tick, tempoAt(ticks, tempos, tick), cache.getTempoMPQAt(tick), 0);
+
+      // Times around the start of each tick, which is where the time-to-tick walk is most
+      // likely to be off by one.
+      for (long d = -1; d <= 1; d++) {
+        long[] expected = microsecond2tick(ticks, tempos, micros + d);
+        assertEquals("micros " + (micros + d), expected[0], map.microsecondToTick(micros + d));
+        assertEquals("micros " + (micros + d), expected[0],
+            MidiUtils.microsecond2tick(sequence, micros + d, cache));
+        assertEquals("micros " + (micros + d), expected[1], cache.getCurrTempoMPQ());
+        assertEquals("micros " + (micros + d), expected[1],
+            map.getTempoMPQAtMicrosecond(micros + d));
+      }
+    }
+  }
+
+  @Test
+  public void testTicksOnTempoChanges() throws Exception {
+    long[] ticks = new long[] {0, 96, 97, 480, 1000, 1001, 5000};
+    int[] tempos = new int[] {500000, 250000, 750000, 333333, 1000000, 600000, 420000};
+    assertMatchesLinearWalk(sequence(ticks, tempos), ticks, tempos);
+  }
+
+  @Test
+  public void testFakeInitialTempo() throws Exception {
+    // The first tempo change comes after the beginning, so the cache adds the default tempo.
+    long[] ticks = new long[] {100, 700};
+    int[] tempos = new int[] {300000, 900000};
+    long[] expectedTicks = new long[] {0, 100, 700};
+    int[] expectedTempos = new int[] {MidiUtils.DEFAULT_TEMPO_MPQ, 300000, 900000};
+    Sequence sequence = sequence(ticks, tempos);
+    assertMatchesLinearWalk(sequence, expectedTicks, expectedTempos);
+
+    // Before the first tempo change, the start tempo replaces the fake one.
+    MidiUtils.TempoCache cache = new MidiUtils.TempoCache(sequence);
+    assertEquals(400000, cache.getTempoMPQAt(99, 400000), 0);
+    assertEquals(300000, cache.getTempoMPQAt(100, 400000), 0);
+  }
+
+  @Test
+  public void testOnlyFakeInitialTempo() throws Exception {
+    Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+    sequence.createTrack();
+    long[] ticks = new long[] {0};
+    int[] tempos = new int[] {MidiUtils.DEFAULT_TEMPO_MPQ};
+    assertMatchesLinearWalk(sequence, ticks, tempos);
+
+    MidiUtils.TempoCache cache = new MidiUtils.TempoCache(sequence);
+    assertEquals(400000, cache.getTempoMPQAt(0, 400000), 0);
+    assertEquals(400000, cache.getTempoMPQAt(1000000, 400000), 0);
+  }
+
+  @Test
+  public void testSingleTempoAtStart() throws Exception {
+    long[] ticks = new long[] {0};
+    int[] tempos = new int[] {400000};
+    assertMatchesLinearWalk(sequence(ticks, tempos), ticks, tempos);
+  }
+
+  @Test
+  public void testBeyondIntMicroseconds() throws Exception {
+    // Slow tempos, so that the later tempo changes start well past 2^31 microseconds.
+    long[] ticks = new long[] {0, 100000, 200000, 1000000};
+    int[] tempos = new int[] {8000000, 16000000, 500000, 12000000};
+    TempoMap map = new TempoMap(ticks, tempos, RESOLUTION);
+    assertTrue(map.tickToMicrosecond(ticks[1]) > Integer.MAX_VALUE);
+    assertTrue(map.tickToMicrosecond(ticks[3]) > 10L * Integer.MAX_VALUE);
+    assertMatchesLinearWalk(sequence(ticks, tempos), ticks, tempos);
+
+    for (long micros : new long[] {Integer.MAX_VALUE, 1L << 31, (1L << 31) + 1, 1L << 40}) {
+      long[] expected = microsecond2tick(ticks, tempos, micros);
+      assertEquals(expected[0], map.microsecondToTick(micros));
+      assertEquals(expected[1], map.getTempoMPQAtMicrosecond(micros));
+    }
+  }
+
+  @Test
+  public void testNegativeTime() throws Exception {
+    long[] ticks = new long[] {0, 96};
+    int[] tempos = new int[] {500000, 250000};
+    TempoMap map = new TempoMap(ticks, tempos, RESOLUTION);
+    assertEquals(0, map.microsecondToTick(-1));
+    assertEquals(500000, map.getTempoMPQAtMicrosecond(-1));
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.player;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.common.RawByteReceiver;
+
+public class MidiSequenceTest {
+
+  private static class RecordingReceiver implements RawByteReceiver {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    @Override
+    public synchronized void onBytesReceived(int nBytes, byte[] buffer) {
+      bytes.write(buffer, 0, nBytes);
+    }
+
+    @Override
+    public boolean beginBlock() {
+      return false;
+    }
+
+    @Override
+    public void endBlock() {}
+
+    synchronized int countNoteOns(int key) {
+      byte[] b = bytes.toByteArray();
+      int n = 0;
+      for (int i = 0; i + 2 < b.length; i++) {
+        if (b[i] == (byte) 0x90 && b[i + 1] == key && b[i + 2] != 0) {
+          n++;
+        }
+      }
+      return n;
+    }
+
+    synchronized int size() {
+      return bytes.size();
+    }
+
+    // Returns the controller, program, and pitch bend state that the bytes leave behind.
+    synchronized byte[] getChaseState() {
+      ChaseState state = new ChaseState();
+      byte[] b = bytes.toByteArray();
+      state.apply(b, 0, b.length);
+      return state.encode();
+    }
+  }
+
+  private static class FinishObserver implements MidiSequenceObserver {
+    final CountDownLatch finished = new CountDownLatch(1);
+
+    @Override
+    public void onPlaybackFinished(MidiSequence sequence) {
+      finished.countDown();
+    }
+  }
+
+  // Returns a type 0 file at 120 bpm with the given number of short notes, one every 1/8 second.
+  private static byte[] song(int key, int nNotes) {
+    ByteArrayOutputStream track = new ByteArrayOutputStream();
+    for (int i = 0; i < nNotes; i++) {
+      track.write(i > 0 ? 12 : 0);
+      track.write(0x90);
+      track.write(key);
+      track.write(100);
+      track.write(12);
+      track.write(0x80);
+      track.write(key);
+      track.write(0);
+    }
+    track.write(0);
+    track.write(0xff);
+    track.write(0x2f);
+    track.write(0);
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    byte[] header = new byte[] {'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 0, 0, 1, 0, 96,
+        'M', 'T', 'r', 'k', 0, 0, 0, (byte) track.size()};
+    file.write(header, 0, header.length);
+    file.write(track.toByteArray(), 0, track.size());
+    return file.toByteArray();
+  }
+
+  private static final int N_GROUPS = 600;
+
+  // Returns a type 0 file with a group of events every 10ms, i.e., every other tick at 96 ticks per
+  // quarter note and 480000 microseconds per quarter note. Group i sets the volume of channel 1 to
+  // i % 128 and the pitch bend of channel 3 to 16 * i, and every tenth group changes the program of
+  // channel 2 to i / 10.
+  private static byte[] chaseSong() {
+    ByteArrayOutputStream track = new ByteArrayOutputStream();
+    byte[] tempo = new byte[] {0, (byte) 0xff, 0x51, 3, 0x07, 0x53, 0x00};
+    track.write(tempo, 0, tempo.length);
+    for (int i = 0; i < N_GROUPS; i++) {
+      byte[] group = groupMessages(i);
+      track.write(i > 0 ? 2 : 0);
+      track.write(group, 0, 3); // Volume
+      track.write(0);
+      track.write(group, 3, 3); // Pitch bend
+      if (group.length > 6) {
+        track.write(0);
+        track.write(group, 6, 2); // Program change
+      }
+    }
+    track.write(0);
+    track.write(0xff);
+    track.write(0x2f);
+    track.write(0);
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    byte[] header = new byte[] {'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 0, 0, 1, 0, 96,
+        'M', 'T', 'r', 'k', 0, 0, (byte) (track.size() >> 8), (byte) track.size()};
+    file.write(header, 0, header.length);
+    file.write(track.toByteArray(), 0, track.size());
+    return file.toByteArray();
+  }
+
+  private static byte[] groupMessages(int i) {
+    int bend = 16 * i;
+    byte[] messages = new byte[] {(byte) 0xb0, 7, (byte) (i % 128),
+        (byte) 0xe2, (byte) (bend & 0x7f), (byte) (bend >> 7),
+        (byte) 0xc1, (byte) (i / 10)};
+    return (i % 10 == 0) ? messages : Arrays.copyOf(messages, 6);
+  }
+
+  // Returns the chase state before the given group.
+  private static byte[] expectedChaseState(int group) {
+    ChaseState state = new ChaseState();
+    for (int i = 0; i < group; i++) {
+      byte[] messages = groupMessages(i);
+      state.apply(messages, 0, messages.length);
+    }
+    return state.encode();
+  }
+
+  // Seeks to the given time and returns the state that the sequence restores when it starts.
+  private static byte[] chaseStateAfterSeek(MidiSequence sequence, long timeMillis) {
+    sequence.seek(timeMillis);
+    RecordingReceiver receiver = new RecordingReceiver();
+    sequence.start(receiver);
+    sequence.pause(); // Before the first group is due.
+    return receiver.getChaseState();
+  }
+
+  private static void assertSeekRestoresState(MidiSequence sequence) {
+    // Groups 256 and 512 come right after a snapshot of the compiled source.
+    assertArrayEquals(expectedChaseState(0), chaseStateAfterSeek(sequence, 0));
+    assertArrayEquals(expectedChaseState(101), chaseStateAfterSeek(sequence, 1005));
+    assertArrayEquals(expectedChaseState(255), chaseStateAfterSeek(sequence, 2550));
+    assertArrayEquals(expectedChaseState(256), chaseStateAfterSeek(sequence, 2560));
+    assertArrayEquals(expectedChaseState(256), chaseStateAfterSeek(sequence, 2551));
+    assertArrayEquals(expectedChaseState(257), chaseStateAfterSeek(sequence, 2561));
+    assertArrayEquals(expectedChaseState(301), chaseStateAfterSeek(sequence, 3003));
+    assertArrayEquals(expectedChaseState(512), chaseStateAfterSeek(sequence, 5120));
+    assertArrayEquals(expectedChaseState(599), chaseStateAfterSeek(sequence, 5990));
+    // Backwards, from the last snapshot to the first interval.
+    assertArrayEquals(expectedChaseState(37), chaseStateAfterSeek(sequence, 370));
+    // Seeking past the end rewinds the song, so there is no state to restore.
+    assertEquals(0, chaseStateAfterSeek(sequence, 6000).length);
+    assertEquals(0, chaseStateAfterSeek(sequence, 100000).length);
+  }
+
+  @Test
+  public void testSeekCompiled() throws Exception {
+    assertSeekRestoresState(load(chaseSong(), new FinishObserver()));
+  }
+
+  @Test
+  public void testSeekCompiledFromCache() throws Exception {
+    MidiSequence sequence = load(chaseSong(), new FinishObserver());
+    ByteArrayOutputStream compiled = new ByteArrayOutputStream();
+    sequence.writeCompiled(compiled);
+    sequence = MidiSequence.fromCompiled(ByteBuffer.wrap(compiled.toByteArray()),
+        new FinishObserver());
+    sequence.setPreciseTiming(true);
+    assertSeekRestoresState(sequence);
+  }
+
+  @Test
+  public void testSeekStreaming() throws Exception {
+    MidiSequence sequence = new MidiSequence(ByteBuffer.wrap(chaseSong()), new FinishObserver());
+    sequence.setPreciseTiming(true);
+    assertSeekRestoresState(sequence);
+  }
+
+  private static MidiSequence load(byte[] song, MidiSequenceObserver observer) throws Exception {
+    MidiSequence sequence = new MidiSequence(new ByteArrayInputStream(song), observer);
+    sequence.setPreciseTiming(true);
+    return sequence;
+  }
+
+  @Test
+  public void testPauseAfterHandOff() throws Exception {
+    FinishObserver observer = new FinishObserver();
+    MidiSequence first = load(song(60, 2), observer);
+    MidiSequence second = load(song(64, 20), new FinishObserver());
+    first.setNext(second);
+    RecordingReceiver receiver = new RecordingReceiver();
+    first.start(receiver);
+    assertTrue(observer.finished.await(5, TimeUnit.SECONDS));
+    assertSame(second, first.getSuccessor());
+    assertTrue(second.isPlaying());
+
+    // The owner of the first sequence hasn't caught up with the hand-off yet.
+    first.pause();
+    assertFalse(second.isPlaying());
+    int nNotes = receiver.countNoteOns(64);
+    Thread.sleep(400);
+    assertEquals(nNotes, receiver.countNoteOns(64));
+  }
+
+  @Test
+  public void testPauseBeforeHandOff() throws Exception {
+    FinishObserver observer = new FinishObserver();
+    MidiSequence first = load(song(60, 4), observer);
+    MidiSequence second = load(song(64, 4), new FinishObserver());
+    first.setNext(second);
+    RecordingReceiver receiver = new RecordingReceiver();
+    first.start(receiver);
+    while (receiver.countNoteOns(60) == 0) {
+      Thread.sleep(1);
+    }
+    first.pause();
+    assertFalse(observer.finished.await(1, TimeUnit.SECONDS));
+    assertFalse(second.isPlaying());
+    assertNull(first.getSuccessor());
+    assertEquals(0, receiver.countNoteOns(64));
+  }
+
+  @Test
+  public void testPauseAfterEnd() throws Exception {
+    FinishObserver observer = new FinishObserver();
+    MidiSequence sequence = load(song(60, 1), observer);
+    RecordingReceiver receiver = new RecordingReceiver();
+    sequence.start(receiver);
+    assertTrue(observer.finished.await(5, TimeUnit.SECONDS));
+    int size = receiver.size();
+    sequence.pause(); // Nothing is playing, so nothing needs to be silenced.
+    assertEquals(size, receiver.size());
+  }
+}
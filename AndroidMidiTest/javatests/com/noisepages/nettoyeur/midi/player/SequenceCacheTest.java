@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SequenceCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File directory;
+  private long songSize; // Size of a cached song with four notes.
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new File(folder.getRoot(), "cache");
+    SequenceCache cache = new SequenceCache(directory, Long.MAX_VALUE);
+    cache.put("probe", song(4));
+    songSize = cache.getSize();
+    cache.clear();
+    assertEquals(0, cacheFiles().size());
+  }
+
+  // Returns a type 0 file at 120 bpm with the given number of notes, one per quarter note.
+  private static MidiSequence song(int nNotes) throws Exception {
+    ByteArrayOutputStream track = new ByteArrayOutputStream();
+    for (int i = 0; i < nNotes; i++) {
+      byte[] note = new byte[] {0, (byte) 0x90, 60, 100, 96, (byte) 0x80, 60, 0};
+      track.write(note, 0, note.length);
+    }
+    byte[] end = new byte[] {0, (byte) 0xff, 0x2f, 0};
+    track.write(end, 0, end.length);
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    byte[] header = new byte[] {'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 0, 0, 1, 0, 96,
+        'M', 'T', 'r', 'k', 0, 0, 0, (byte) track.size()};
+    file.write(header, 0, header.length);
+    file.write(track.toByteArray(), 0, track.size());
+    return new MidiSequence(new ByteArrayInputStream(file.toByteArray()), null);
+  }
+
+  private Set<File> cacheFiles() {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".seq");
+      }
+    });
+    return new HashSet<File>(Arrays.asList(files));
+  }
+
+  // Adds a song and returns its cache file.
+  private File put(SequenceCache cache, String key) throws Exception {
+    Set<File> before = cacheFiles();
+    cache.put(key, song(4));
+    Set<File> after = cacheFiles();
+    after.removeAll(before);
+    assertEquals(1, after.size());
+    return after.iterator().next();
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    SequenceCache cache = new SequenceCache(directory, 3 * songSize);
+    put(cache, "a");
+    put(cache, "b");
+    put(cache, "c");
+    assertNotNull(cache.get("a", null)); // Now b is the least recently used song.
+    put(cache, "d");
+    assertEquals(3 * songSize, cache.getSize());
+    assertNull(cache.get("b", null));
+    assertNotNull(cache.get("a", null));
+    assertNotNull(cache.get("c", null));
+    assertNotNull(cache.get("d", null));
+
+    cache.setMaxSize(songSize);
+    assertEquals(songSize, cache.getSize());
+    assertEquals(1, cacheFiles().size());
+    assertNotNull(cache.get("d", null));
+  }
+
+  @Test
+  public void testCorruptFilesAreEvicted() throws Exception {
+    SequenceCache cache = new SequenceCache(directory, Long.MAX_VALUE);
+    File truncated = put(cache, "truncated");
+    File garbled = put(cache, "garbled");
+    put(cache, "good");
+
+    RandomAccessFile raf = new RandomAccessFile(truncated, "rw");
+    raf.setLength(truncated.length() - 1);
+    raf.close();
+    raf = new RandomAccessFile(garbled, "rw");
+    raf.write(new byte[] {'M', 'T', 'h', 'd'});
+    raf.close();
+
+    assertNull(cache.get("truncated", null));
+    assertNull(cache.get("garbled", null));
+    assertFalse(truncated.exists());
+    assertFalse(garbled.exists());
+    assertEquals(songSize, cache.getSize());
+    assertNotNull(cache.get("good", null));
+  }
+
+  @Test
+  public void testOrderRestoredFromModificationTimes() throws Exception {
+    SequenceCache cache = new SequenceCache(directory, Long.MAX_VALUE);
+    File a = put(cache, "a");
+    File b = put(cache, "b");
+    File c = put(cache, "c");
+    // Use since the last restart: b, then c, then a.
+    long now = System.currentTimeMillis();
+    assertTrue(b.setLastModified(now - 30000));
+    assertTrue(c.setLastModified(now - 20000));
+    assertTrue(a.setLastModified(now - 10000));
+
+    cache = new SequenceCache(directory, 3 * songSize);
+    assertEquals(3 * songSize, cache.getSize());
+    File d = put(cache, "d");
+    assertFalse(b.exists());
+    assertNull(cache.get("b", null));
+    File e = put(cache, "e");
+    assertFalse(c.exists());
+    assertTrue(d.setLastModified(now - 5000));
+    assertTrue(e.setLastModified(now - 4000));
+    assertNotNull(cache.get("a", null)); // Touches the file.
+
+    // The constructor evicts songs right away if the budget has shrunk.
+    cache = new SequenceCache(directory, songSize);
+    assertEquals(songSize, cache.getSize());
+    assertNotNull(cache.get("a", null));
+  }
+
+  @Test
+  public void testLeftoversAreDeleted() throws Exception {
+    SequenceCache cache = new SequenceCache(directory, Long.MAX_VALUE);
+    File song = put(cache, "a");
+    File part = File.createTempFile("tmp", ".part", directory);
+    FileOutputStream out = new FileOutputStream(part);
+    out.write(new byte[100]);
+    out.close();
+
+    cache = new SequenceCache(directory, Long.MAX_VALUE);
+    assertFalse(part.exists());
+    assertTrue(song.exists());
+    assertEquals(songSize, cache.getSize());
+    assertEquals(1, directory.list().length);
+  }
+
+  @Test
+  public void testPutReplacesEntry() throws Exception {
+    SequenceCache cache = new SequenceCache(directory, Long.MAX_VALUE);
+    MidiSequence shortSong = song(2);
+    MidiSequence longSong = song(8);
+    cache.put("a", shortSong);
+    long shortSize = cache.getSize();
+    cache.put("a", longSong);
+    assertTrue(cache.getSize() > shortSize);
+    assertEquals(1, cacheFiles().size());
+    assertEquals(cacheFiles().iterator().next().length(), cache.getSize());
+    assertEquals(longSong.duration, cache.get("a", null).duration);
+    assertEquals(1, directory.list().length); // No temporary files are left behind.
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.common.RawByteReceiver;
+
+public class SongQueueTest {
+
+  // A type 0 file with a single note.
+  private static final byte[] SONG = new byte[] {
+      'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 0, 0, 1, 0, 96,
+      'M', 'T', 'r', 'k', 0, 0, 0, 12,
+      0, (byte) 0x90, 60, 100, 96, (byte) 0x80, 60, 0, 0, (byte) 0xff, 0x2f, 0};
+
+  // Collects tasks and runs them on demand, like a single-threaded executor that is busy.
+  private static class ManualExecutor implements Executor {
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable r) {
+      tasks.add(r);
+    }
+
+    void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+
+  private static class NullReceiver implements RawByteReceiver {
+    @Override
+    public void onBytesReceived(int nBytes, byte[] buffer) {}
+
+    @Override
+    public boolean beginBlock() {
+      return false;
+    }
+
+    @Override
+    public void endBlock() {}
+  }
+
+  private final Map<String, MidiSequence> songs =
+      Collections.synchronizedMap(new HashMap<String, MidiSequence>());
+  private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+  private final CountDownLatch queueFinished = new CountDownLatch(1);
+  private SongQueue<String> queue;
+
+  // Sequences report to the queue, as in MidiPlayerService.
+  private final MidiSequenceObserver observer = new MidiSequenceObserver() {
+    @Override
+    public void onPlaybackFinished(MidiSequence sequence) {
+      queue.onSequenceFinished(sequence);
+    }
+  };
+
+  @Before
+  public void setUp() {
+    // Runs tasks right away, in order, like a single-threaded executor that is never busy.
+    queue = newQueue(new Executor() {
+      @Override
+      public void execute(Runnable r) {
+        r.run();
+      }
+    });
+  }
+
+  private SongQueue<String> newQueue(Executor executor) {
+    SongQueue.Loader<String> loader = new SongQueue.Loader<String>() {
+      @Override
+      public MidiSequence load(String key) throws Exception {
+        events.add("load " + key);
+        if (key.startsWith("bad")) {
+          throw new FileNotFoundException(key);
+        }
+        return newSong(key);
+      }
+    };
+    SongQueue.Listener<String> listener = new SongQueue.Listener<String>() {
+      @Override
+      public void onSongChanged(String key, MidiSequence sequence, boolean start) {
+        assertSame(songs.get(key), sequence);
+        events.add((start ? "start " : "current ") + key);
+      }
+
+      @Override
+      public void onQueueFinished() {
+        events.add("finished");
+        queueFinished.countDown();
+      }
+    };
+    return new SongQueue<String>(loader, listener, executor);
+  }
+
+  private MidiSequence newSong(String key) throws Exception {
+    MidiSequence sequence = new MidiSequence(new ByteArrayInputStream(SONG), observer);
+    sequence.setPreciseTiming(true);
+    songs.put(key, sequence);
+    return sequence;
+  }
+
+  @Test
+  public void testBadSongInQueue() throws Exception {
+    MidiSequence first = newSong("first");
+    queue.setCurrent("first", first);
+    queue.enqueue("a");
+    queue.enqueue("bad");
+    queue.enqueue("b");
+    assertSame(songs.get("a"), first.getNext());
+
+    queue.onSequenceFinished(first);
+    assertEquals(Arrays.asList("bad", "b"), queue.getKeys());
+    // The song after a is b, for a gapless hand-off, since the bad song failed to load.
+    assertSame(songs.get("b"), songs.get("a").getNext());
+
+    queue.onSequenceFinished(songs.get("a"));
+    assertEquals(Collections.emptyList(), queue.getKeys());
+    assertNull(songs.get("b").getNext());
+
+    queue.onSequenceFinished(songs.get("b"));
+    assertEquals(Arrays.asList("current first", "load a", "load bad", "start a", "load b",
+        "start b", "finished"), events);
+  }
+
+  @Test
+  public void testBadSongsWithoutPreloading() throws Exception {
+    queue.setPreloadCount(0);
+    MidiSequence first = newSong("first");
+    queue.setCurrent("first", first);
+    queue.enqueue("bad1");
+    queue.enqueue("bad2");
+    queue.enqueue("a");
+    queue.enqueue("bad3");
+    assertNull(first.getNext());
+
+    queue.onSequenceFinished(first);
+    assertEquals(Arrays.asList("bad3"), queue.getKeys());
+    queue.onSequenceFinished(songs.get("a"));
+    assertEquals(Collections.emptyList(), queue.getKeys());
+    assertEquals(Arrays.asList("current first", "load bad1", "load bad2", "load a", "start a",
+        "load bad3", "finished"), events);
+  }
+
+  @Test
+  public void testNewSongWhileNextIsLoading() throws Exception {
+    ManualExecutor executor = new ManualExecutor();
+    queue = newQueue(executor);
+    queue.setPreloadCount(0);
+    MidiSequence first = newSong("first");
+    queue.setCurrent("first", first);
+    queue.enqueue("a");
+    queue.onSequenceFinished(first);
+
+    // The player loads another song before the next one in the queue has been loaded.
+    MidiSequence other = newSong("other");
+    queue.setCurrent("other", other);
+    executor.runAll();
+    assertEquals(Arrays.asList("current first", "current other", "load a"), events);
+    // The queued song plays after the new one instead.
+    assertEquals(Arrays.asList("a"), queue.getKeys());
+    assertSame(songs.get("a"), other.getNext());
+  }
+
+  @Test
+  public void testGaplessHandOff() throws Exception {
+    MidiSequence first = newSong("first");
+    queue.setCurrent("first", first);
+    queue.enqueue("a");
+    queue.enqueue("bad");
+    queue.enqueue("b");
+    first.start(new NullReceiver());
+    assertTrue(queueFinished.await(5, TimeUnit.SECONDS));
+    // Each song took over from the previous one, so none of them had to be started.
+    assertEquals(Arrays.asList("current first", "load a", "load bad", "load b", "current a",
+        "current b", "finished"), events);
+    assertSame(songs.get("a"), first.getSuccessor());
+    assertSame(songs.get("b"), songs.get("a").getSuccessor());
+    assertEquals(Collections.emptyList(), queue.getKeys());
+  }
+}
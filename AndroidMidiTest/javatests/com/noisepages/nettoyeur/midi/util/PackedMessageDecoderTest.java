@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.midi.util;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.midi.MidiReceiver;
+import com.noisepages.nettoyeur.midi.PackedMidiReceiver;
+
+public class PackedMessageDecoderTest {
+
+  private MidiReceiver receiver;
+  private PackedMessageDecoder decoder;
+
+  @Before
+  public void setUp() {
+    receiver = EasyMock.createStrictMock(MidiReceiver.class);
+    decoder = new PackedMessageDecoder(receiver);
+  }
+
+  @Test
+  public void testSingleMessage() {
+    receiver.onControlChange(0x02, 0x07, 0x7f);
+    EasyMock.replay(receiver);
+    decoder.onMessagesReceived(1, new int[] {0x7f07b2});
+    EasyMock.verify(receiver);
+  }
+
+  @Test
+  public void testBatch() {
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
+    receiver.onNoteOn(0x00, 0x48, 0x7f);
+    receiver.onProgramChange(0x0f, 0x10);
+    receiver.onPitchBend(0x00, 0);
+    receiver.onRawByte((byte) 0xf8);
+    receiver.onRawByte((byte) 0x00);
+    receiver.endBlock();
+    EasyMock.replay(receiver);
+    int[] messages =
+        new int[] {0x7f4890, 0x0010cf, 0x4000e0, PackedMidiReceiver.RAW_BYTE | 0xf8,
+            PackedMidiReceiver.RAW_BYTE, 0x123456};
+    decoder.onMessagesReceived(5, messages);
+    EasyMock.verify(receiver);
+  }
+
+  @Test
+  public void testBatchWithoutBlockMode() {
+    EasyMock.expect(receiver.beginBlock()).andReturn(false);
+    receiver.onNoteOff(0x01, 0x48, 0x00);
+    receiver.onNoteOff(0x01, 0x4c, 0x00);
+    EasyMock.replay(receiver);
+    decoder.onMessagesReceived(2, new int[] {0x004881, 0x004c81});
+    EasyMock.verify(receiver);
+  }
+}
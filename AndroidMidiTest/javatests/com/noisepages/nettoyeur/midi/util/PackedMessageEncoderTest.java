@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.midi.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.midi.FromWireConverter;
+import com.noisepages.nettoyeur.midi.MidiReceiver;
+import com.noisepages.nettoyeur.midi.PackedMidiReceiver;
+
+public class PackedMessageEncoderTest {
+
+  private PackedMidiReceiver receiver;
+  private PackedMessageEncoder encoder;
+
+  @Before
+  public void setUp() {
+    receiver = EasyMock.createStrictMock(PackedMidiReceiver.class);
+    encoder = new PackedMessageEncoder(receiver, 4);
+  }
+
+  @Test
+  public void testSingleMessages() {
+    receiver.onMessagesReceived(EasyMock.eq(1), EasyMock.aryEq(new int[] {0x7f4893, 0, 0, 0}));
+    receiver.onMessagesReceived(EasyMock.eq(1), EasyMock.aryEq(new int[] {0x0010c1, 0, 0, 0}));
+    receiver.onMessagesReceived(EasyMock.eq(1), EasyMock.aryEq(new int[] {0x3f7ee0, 0, 0, 0}));
+    receiver.onMessagesReceived(EasyMock.eq(1),
+        EasyMock.aryEq(new int[] {PackedMidiReceiver.RAW_BYTE | 0xf8, 0, 0, 0}));
+    EasyMock.replay(receiver);
+    encoder.onNoteOn(0x03, 0x48, 0x7f);
+    encoder.onProgramChange(0x01, 0x10);
+    encoder.onPitchBend(0x00, -2);
+    encoder.onRawByte((byte) 0xf8);
+    EasyMock.verify(receiver);
+  }
+
+  @Test
+  public void testBlocks() {
+    receiver.onMessagesReceived(EasyMock.eq(3),
+        EasyMock.aryEq(new int[] {0x7f4890, 0x004880, 0x0a07b2, 0}));
+    receiver.onMessagesReceived(EasyMock.eq(4),
+        EasyMock.aryEq(new int[] {0x000190, 0x000290, 0x000390, 0x000490}));
+    receiver.onMessagesReceived(EasyMock.eq(1),
+        EasyMock.aryEq(new int[] {0x000590, 0x000290, 0x000390, 0x000490}));
+    EasyMock.replay(receiver);
+    encoder.beginBlock();
+    encoder.onNoteOn(0x00, 0x48, 0x7f);
+    encoder.beginBlock(); // Nested blocks only deliver at the outermost endBlock().
+    encoder.onNoteOff(0x00, 0x48, 0x00);
+    encoder.endBlock();
+    encoder.onControlChange(0x02, 0x07, 0x0a);
+    encoder.endBlock();
+    encoder.beginBlock();
+    for (int i = 1; i <= 5; i++) {
+      encoder.onNoteOn(0x00, i, 0x00);
+    }
+    encoder.endBlock();
+    EasyMock.verify(receiver);
+  }
+
+  @Test
+  public void testFromWire() {
+    final List<int[]> batches = new ArrayList<int[]>();
+    FromWireConverter fromWire = new FromWireConverter(new PackedMidiReceiver() {
+      @Override
+      public void onMessagesReceived(int count, int[] messages) {
+        batches.add(Arrays.copyOf(messages, count));
+      }
+    });
+    byte[] msg = new byte[] {(byte) 0x90, 0x48, 0x7f, 0x4c, 0x7f, (byte) 0xf8};
+    fromWire.onBytesReceived(msg.length, msg);
+    assertEquals(1, batches.size());
+    assertArrayEquals(new int[] {0x7f4890, 0x7f4c90, PackedMidiReceiver.RAW_BYTE | 0xf8},
+        batches.get(0));
+  }
+
+  @Test
+  public void testIdentity() {
+    MidiReceiver midiReceiver = EasyMock.createStrictMock(MidiReceiver.class);
+    midiReceiver.onNoteOff(0x0f, 0x00, 0x00);
+    midiReceiver.onPolyAftertouch(0x01, 0x60, 0x0f);
+    midiReceiver.onAftertouch(0x0f, 0x7f);
+    midiReceiver.onPitchBend(0x04, 8191);
+    midiReceiver.onPitchBend(0x04, -8192);
+    midiReceiver.onRawByte((byte) 0xf0);
+    midiReceiver.onRawByte((byte) 0x01);
+    midiReceiver.onRawByte((byte) 0xf7);
+    EasyMock.replay(midiReceiver);
+    PackedMessageEncoder identity =
+        new PackedMessageEncoder(new PackedMessageDecoder(midiReceiver));
+    identity.onNoteOff(0x0f, 0x00, 0x00);
+    identity.onPolyAftertouch(0x01, 0x60, 0x0f);
+    identity.onAftertouch(0x0f, 0x7f);
+    identity.onPitchBend(0x04, 8191);
+    identity.onPitchBend(0x04, -8192);
+    identity.onRawByte((byte) 0xf0);
+    identity.onRawByte((byte) 0x01);
+    identity.onRawByte((byte) 0xf7);
+    EasyMock.verify(midiReceiver);
+  }
+}
@@ -16,12 +16,36 @@ package com.noisepages.nettoyeur.midi.util;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
 
 public class SystemMessageDecoderTest {
 
+  private static class RecordingSysexReceiver implements SysexStreamReceiver {
+    final List<String> events = new ArrayList<String>();
+    byte[] lastBuffer = null;
+
+    @Override
+    public void onSysexBegin() {
+      events.add("begin");
+    }
+
+    @Override
+    public void onSysexData(byte[] buffer, int offset, int length) {
+      events.add("data " + offset + " " + length);
+      lastBuffer = buffer;
+    }
+
+    @Override
+    public void onSysexEnd(boolean complete) {
+      events.add("end " + complete);
+    }
+  }
+
   private SystemMessageDecoder decoder;
   private SystemMessageReceiver receiver;
 
@@ -188,4 +212,63 @@ public class SystemMessageDecoderTest {
     assertTrue(decoder.decodeByte((byte) 0xf7));
     EasyMock.verify(receiver);
   }
+
+  @Test
+  public void testDecodeBytes() {
+    receiver.onSystemExclusive(EasyMock.aryEq(new byte[] {0x01, 0x02, 0x03, 0x04}));
+    receiver.onTimingClock();
+    receiver.onSystemExclusive(EasyMock.aryEq(new byte[] {0x05}));
+    receiver.onSongSelect(0x10);
+    EasyMock.replay(receiver);
+    byte[] data = new byte[] {0x7f, (byte) 0xf0, 0x01, 0x02, 0x03, 0x04, (byte) 0xf7, (byte) 0xf0,
+        (byte) 0xf8, 0x05, (byte) 0xf7, (byte) 0x90, 0x40, 0x40, (byte) 0xf3, 0x10};
+    decoder.decodeBytes(data, 1, data.length - 1);
+    EasyMock.verify(receiver);
+  }
+
+  @Test
+  public void testMaxSysexLength() {
+    receiver.onSystemExclusive(EasyMock.aryEq(new byte[] {0x01, 0x02, 0x03}));
+    receiver.onSystemExclusive(EasyMock.aryEq(new byte[] {0x04}));
+    EasyMock.replay(receiver);
+    decoder = new SystemMessageDecoder(receiver, 3);
+    decoder.decodeBytes(new byte[] {(byte) 0xf0, 0x01, 0x02, 0x03, (byte) 0xf7}, 0, 5);
+    decoder.decodeBytes(new byte[] {(byte) 0xf0, 0x01, 0x02, 0x03, 0x04, (byte) 0xf7}, 0, 6);
+    for (byte b : new byte[] {(byte) 0xf0, 0x01, 0x02, 0x03, 0x04, (byte) 0xf7}) {
+      assertTrue(decoder.decodeByte(b));
+    }
+    decoder.decodeBytes(new byte[] {(byte) 0xf0, 0x04, (byte) 0xf7}, 0, 3);
+    EasyMock.verify(receiver);
+    assertEquals(2, decoder.getDroppedSysexCount());
+  }
+
+  @Test
+  public void testStreamingSlices() {
+    receiver.onTimingClock();
+    receiver.onTuneRequest();
+    EasyMock.replay(receiver);
+    RecordingSysexReceiver sysexReceiver = new RecordingSysexReceiver();
+    decoder = new SystemMessageDecoder(receiver, sysexReceiver);
+    byte[] data = new byte[] {(byte) 0xf0, 0x01, 0x02, (byte) 0xf8, 0x03, (byte) 0xf7, (byte) 0xf0,
+        0x04, (byte) 0xf6};
+    decoder.decodeBytes(data, 0, data.length);
+    EasyMock.verify(receiver);
+    assertSame(data, sysexReceiver.lastBuffer);
+    assertEquals("[begin, data 1 2, data 4 1, end true, begin, data 7 1, end false]",
+        sysexReceiver.events.toString());
+  }
+
+  @Test
+  public void testStreamingByteByByte() {
+    EasyMock.replay(receiver);
+    RecordingSysexReceiver sysexReceiver = new RecordingSysexReceiver();
+    decoder = new SystemMessageDecoder(receiver, sysexReceiver);
+    assertTrue(decoder.decodeByte((byte) 0xf0));
+    for (int i = 0; i < 300; i++) {
+      assertTrue(decoder.decodeByte((byte) (i & 0x7f)));
+    }
+    assertTrue(decoder.decodeByte((byte) 0xf7));
+    EasyMock.verify(receiver);
+    assertEquals("[begin, data 0 256, data 0 44, end true]", sysexReceiver.events.toString());
+  }
 }
@@ -14,11 +14,18 @@
 
 package com.noisepages.nettoyeur.midi.util;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.noisepages.nettoyeur.common.RawByteReceiver;
 import com.noisepages.nettoyeur.midi.MidiReceiver;
+import com.noisepages.nettoyeur.midi.ToWireConverter;
 
 public class SystemMessageEncoderTest {
 
@@ -33,13 +40,17 @@ public class SystemMessageEncoderTest {
 
   @Test
   public void testSystemExclusive() {
+    EasyMock.expect(receiver.beginBlock()).andReturn(false);
     receiver.onRawByte((byte) 0xf0);
     receiver.onRawByte((byte) 0xf7);
+    receiver.endBlock();
+    EasyMock.expect(receiver.beginBlock()).andReturn(false);
     receiver.onRawByte((byte) 0xf0);
     receiver.onRawByte((byte) 0x00);
     receiver.onRawByte((byte) 0x7f);
     receiver.onRawByte((byte) 0x03);
     receiver.onRawByte((byte) 0xf7);
+    receiver.endBlock();
     EasyMock.replay(receiver);
     encoder.onSystemExclusive(new byte[0]);
     encoder.onSystemExclusive(new byte[] {0x00, 0x7f, 0x03});
@@ -48,12 +59,18 @@ public class SystemMessageEncoderTest {
 
   @Test
   public void testTimeCode() {
+    EasyMock.expect(receiver.beginBlock()).andReturn(false);
     receiver.onRawByte((byte) 0xf1);
     receiver.onRawByte((byte) 0x00);
+    receiver.endBlock();
+    EasyMock.expect(receiver.beginBlock()).andReturn(false);
     receiver.onRawByte((byte) 0xf1);
     receiver.onRawByte((byte) 0x7f);
+    receiver.endBlock();
+    EasyMock.expect(receiver.beginBlock()).andReturn(false);
     receiver.onRawByte((byte) 0xf1);
     receiver.onRawByte((byte) 0x61);
+    receiver.endBlock();
     EasyMock.replay(receiver);
     encoder.onTimeCode(0x00);
     encoder.onTimeCode(0x7f);
@@ -63,15 +80,21 @@ public class SystemMessageEncoderTest {
 
   @Test
   public void testSongPosition() {
+    EasyMock.expect(receiver.beginBlock()).andReturn(false);
     receiver.onRawByte((byte) 0xf2);
     receiver.onRawByte((byte) 0x00);
     receiver.onRawByte((byte) 0x00);
+    receiver.endBlock();
+    EasyMock.expect(receiver.beginBlock()).andReturn(false);
     receiver.onRawByte((byte) 0xf2);
     receiver.onRawByte((byte) 0x7f);
     receiver.onRawByte((byte) 0x7f);
+    receiver.endBlock();
+    EasyMock.expect(receiver.beginBlock()).andReturn(false);
     receiver.onRawByte((byte) 0xf2);
     receiver.onRawByte((byte) 0x03);
     receiver.onRawByte((byte) 0x01);
+    receiver.endBlock();
     EasyMock.replay(receiver);
     encoder.onSongPosition(0);
     encoder.onSongPosition(0x3fff);
@@ -91,12 +114,18 @@ public class SystemMessageEncoderTest {
 
   @Test
   public void testSongSelect() {
+    EasyMock.expect(receiver.beginBlock()).andReturn(false);
     receiver.onRawByte((byte) 0xf3);
     receiver.onRawByte((byte) 0x00);
+    receiver.endBlock();
+    EasyMock.expect(receiver.beginBlock()).andReturn(false);
     receiver.onRawByte((byte) 0xf3);
     receiver.onRawByte((byte) 0x7f);
+    receiver.endBlock();
+    EasyMock.expect(receiver.beginBlock()).andReturn(false);
     receiver.onRawByte((byte) 0xf3);
     receiver.onRawByte((byte) 0x45);
+    receiver.endBlock();
     EasyMock.replay(receiver);
     encoder.onSongSelect(0);
     encoder.onSongSelect(0x7f);
@@ -170,4 +199,42 @@ public class SystemMessageEncoderTest {
     encoder.onSystemReset();
     EasyMock.verify(receiver);
   }
+
+  @Test
+  public void testBulk() {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final int[] nCalls = new int[1];
+    encoder = new SystemMessageEncoder(new ToWireConverter(new RawByteReceiver() {
+      @Override
+      public void onBytesReceived(int nBytes, byte[] buffer) {
+        bytes.write(buffer, 0, nBytes);
+        nCalls[0]++;
+      }
+
+      @Override
+      public boolean beginBlock() {
+        return false;
+      }
+
+      @Override
+      public void endBlock() {}
+    }));
+    byte[] sysex = new byte[100];
+    for (int i = 0; i < sysex.length; i++) {
+      sysex[i] = (byte) i;
+    }
+    encoder.onSystemExclusive(sysex);
+    encoder.onSongPosition(0x0083);
+    encoder.onTimingClock();
+    assertEquals(3, nCalls[0]);
+    byte[] expected = new byte[sysex.length + 6];
+    expected[0] = (byte) 0xf0;
+    System.arraycopy(sysex, 0, expected, 1, sysex.length);
+    expected[sysex.length + 1] = (byte) 0xf7;
+    expected[sysex.length + 2] = (byte) 0xf2;
+    expected[sysex.length + 3] = 0x03;
+    expected[sysex.length + 4] = 0x01;
+    expected[sysex.length + 5] = (byte) 0xf8;
+    assertArrayEquals(expected, bytes.toByteArray());
+  }
 }
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.usb.midi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.common.RawByteReceiver;
+
+public class QueuedInputEngineTest {
+
+  private static final int PACKET_SIZE = 16;
+
+  /**
+   * Stand-in for the host controller; fills queued buffers in the order in which they were queued.
+   */
+  private static class FakeRequestQueue implements UsbRequestQueue {
+    private final BlockingQueue<Integer> queued = new LinkedBlockingQueue<Integer>();
+    private final BlockingQueue<Integer> completed = new LinkedBlockingQueue<Integer>();
+    private final ByteBuffer[] buffers;
+    private volatile int nQueueable; // Number of calls to queue that will succeed.
+    private volatile int nOutstanding = 0; // Requests that have been queued but not awaited.
+
+    FakeRequestQueue(int nRequests) {
+      this(nRequests, Integer.MAX_VALUE);
+    }
+
+    FakeRequestQueue(int nRequests, int nQueueable) {
+      buffers = new ByteBuffer[nRequests];
+      this.nQueueable = nQueueable;
+    }
+
+    @Override
+    public synchronized boolean queue(int slot, ByteBuffer buffer) {
+      if (nQueueable == 0) {
+        return false;
+      }
+      nQueueable--;
+      nOutstanding++;
+      buffers[slot] = buffer;
+      queued.add(slot);
+      return true;
+    }
+
+    @Override
+    public int await() {
+      try {
+        int slot = completed.take();
+        synchronized (this) {
+          nOutstanding--;
+        }
+        return slot;
+      } catch (InterruptedException e) {
+        return -1;
+      }
+    }
+
+    @Override
+    public synchronized void cancel() {
+      queued.drainTo(completed);
+    }
+
+    void deliver(byte[] packet) throws InterruptedException {
+      deliver(packet, true);
+    }
+
+    // Older versions of Android leave the position of the buffer unchanged.
+    synchronized void deliver(byte[] packet, boolean reportLength) throws InterruptedException {
+      Integer slot;
+      while ((slot = queued.poll()) == null) {
+        wait(1);
+      }
+      if (reportLength) {
+        buffers[slot].put(packet);
+      } else {
+        System.arraycopy(packet, 0, buffers[slot].array(), 0, packet.length);
+      }
+      completed.add(slot);
+    }
+  }
+
+  private static class RecordingReceiver implements RawByteReceiver {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    @Override
+    public synchronized void onBytesReceived(int nBytes, byte[] buffer) {
+      bytes.write(buffer, 0, nBytes);
+    }
+
+    @Override
+    public boolean beginBlock() {
+      return false;
+    }
+
+    @Override
+    public void endBlock() {}
+
+    synchronized byte[] getBytes() {
+      return bytes.toByteArray();
+    }
+  }
+
+  @Test
+  public void testBurst() throws InterruptedException {
+    FakeRequestQueue queue = new FakeRequestQueue(4);
+    RecordingReceiver receiver = new RecordingReceiver();
+    QueuedInputEngine engine = new QueuedInputEngine(queue, 4, PACKET_SIZE, receiver);
+    Thread thread = new Thread(engine);
+    thread.start();
+    int nPackets = 1000;
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (int i = 0; i < nPackets; i++) {
+      byte[] packet = new byte[1 + i % PACKET_SIZE];
+      for (int j = 0; j < packet.length; j++) {
+        packet[j] = (byte) (i + j + 1);
+      }
+      queue.deliver(packet);
+      expected.write(packet, 0, packet.length);
+    }
+    while (receiver.getBytes().length < expected.size()) {
+      Thread.sleep(1);
+    }
+    engine.stop();
+    thread.join(1000);
+    assertFalse(thread.isAlive());
+    assertArrayEquals(expected.toByteArray(), receiver.getBytes());
+  }
+
+  @Test
+  public void testUnknownLength() throws InterruptedException {
+    FakeRequestQueue queue = new FakeRequestQueue(1);
+    RecordingReceiver receiver = new RecordingReceiver();
+    QueuedInputEngine engine = new QueuedInputEngine(queue, 1, PACKET_SIZE, receiver);
+    Thread thread = new Thread(engine);
+    thread.start();
+    byte[] packet = new byte[PACKET_SIZE];
+    Arrays.fill(packet, (byte) 0x09);
+    queue.deliver(packet);
+    queue.deliver(new byte[] {0x08}, false);
+    while (receiver.getBytes().length < 2 * PACKET_SIZE) {
+      Thread.sleep(1);
+    }
+    engine.stop();
+    thread.join(1000);
+    // Without a reported length, the entire buffer is passed on; stale data must not leak into it.
+    byte[] bytes = receiver.getBytes();
+    assertEquals(2 * PACKET_SIZE, bytes.length);
+    assertEquals(0x08, bytes[PACKET_SIZE]);
+    for (int i = 1; i < PACKET_SIZE; i++) {
+      assertEquals(0, bytes[PACKET_SIZE + i]);
+    }
+  }
+
+  @Test
+  public void testStopWhileIdle() throws InterruptedException {
+    FakeRequestQueue queue = new FakeRequestQueue(4);
+    QueuedInputEngine engine =
+        new QueuedInputEngine(queue, 4, PACKET_SIZE, new RecordingReceiver());
+    Thread thread = new Thread(engine);
+    thread.start();
+    Thread.sleep(10);
+    long t0 = System.nanoTime();
+    engine.stop();
+    thread.join(1000);
+    assertFalse(thread.isAlive());
+    assertFalse(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0) > 100);
+    assertEquals(0, queue.queued.size());
+  }
+
+  @Test
+  public void testStopReapsAllRequests() throws InterruptedException {
+    FakeRequestQueue queue = new FakeRequestQueue(4);
+    RecordingReceiver receiver = new RecordingReceiver();
+    QueuedInputEngine engine = new QueuedInputEngine(queue, 4, PACKET_SIZE, receiver);
+    Thread thread = new Thread(engine);
+    thread.start();
+    queue.deliver(new byte[] {0x09, (byte) 0x90, 60, 0x7f});
+    queue.deliver(new byte[] {0x08, (byte) 0x80, 60, 0x00});
+    while (receiver.getBytes().length < 8) {
+      Thread.sleep(1);
+    }
+    engine.stop();
+    thread.join(1000);
+    assertFalse(thread.isAlive());
+    // All cancelled requests have been returned by await, so that they can be closed.
+    assertEquals(0, queue.nOutstanding);
+    assertEquals(0, queue.completed.size());
+    assertFalse(engine.hasFailed());
+  }
+
+  @Test
+  public void testQueueFailure() throws InterruptedException {
+    FakeRequestQueue queue = new FakeRequestQueue(4, 5);
+    RecordingReceiver receiver = new RecordingReceiver();
+    QueuedInputEngine engine = new QueuedInputEngine(queue, 4, PACKET_SIZE, receiver);
+    Thread thread = new Thread(engine);
+    thread.start();
+    queue.deliver(new byte[] {0x09, (byte) 0x90, 60, 0x7f});
+    queue.deliver(new byte[] {0x08, (byte) 0x80, 60, 0x00}); // Can't be queued again.
+    thread.join(1000);
+    assertFalse(thread.isAlive());
+    assertTrue(engine.hasFailed());
+    assertEquals(0, queue.nOutstanding);
+    assertEquals(8, receiver.getBytes().length);
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.usb.midi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.midi.ToWireConverter;
+import com.noisepages.nettoyeur.midi.util.SystemMessageEncoder;
+
+public class UsbMidiPacketizerTest {
+
+  private static final int PACKET_SIZE = 8;
+
+  private final List<byte[]> packets = new ArrayList<byte[]>();
+  private UsbMidiPacketizer packetizer;
+
+  @Before
+  public void setUp() {
+    packets.clear();
+    packetizer = new UsbMidiPacketizer(new UsbMidiPacketizer.PacketSink() {
+      @Override
+      public void sendPacket(byte[] buffer, int offset, int length) {
+        packets.add(Arrays.copyOfRange(buffer, offset, offset + length));
+      }
+    }, PACKET_SIZE);
+  }
+
+  @Test
+  public void testChannelMessages() {
+    send((byte) 0x93, 0x40, 0x7f, (byte) 0xc2, 0x05);
+    assertEquals(1, packets.size());
+    assertArrayEquals(new byte[] {0x09, (byte) 0x93, 0x40, 0x7f, 0x0c, (byte) 0xc2, 0x05, 0x00},
+        packets.get(0));
+  }
+
+  @Test
+  public void testPacketBoundaries() {
+    send((byte) 0x90, 0x40, 0x7f, (byte) 0x90, 0x41, 0x7f, (byte) 0x90, 0x42, 0x7f);
+    assertEquals(2, packets.size());
+    assertEquals(PACKET_SIZE, packets.get(0).length);
+    assertArrayEquals(new byte[] {0x09, (byte) 0x90, 0x42, 0x7f}, packets.get(1));
+  }
+
+  @Test
+  public void testSingleBytes() {
+    packetizer.setVirtualCable(3);
+    send((byte) 0xf8, 0x01, (byte) 0xf7);
+    assertEquals(2, packets.size());
+    assertArrayEquals(new byte[] {0x3f, (byte) 0xf8, 0x00, 0x00, 0x3f, 0x01, 0x00, 0x00},
+        packets.get(0));
+    assertArrayEquals(new byte[] {0x3f, (byte) 0xf7, 0x00, 0x00}, packets.get(1));
+  }
+
+  @Test
+  public void testSysex() {
+    packetizer.setVirtualCable(3);
+    send((byte) 0xf0, (byte) 0xf7);
+    send((byte) 0xf0, 0x01, (byte) 0xf7);
+    send((byte) 0xf0, 0x01, 0x02, (byte) 0xf7);
+    send((byte) 0xf0, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, (byte) 0xf7);
+    assertEquals(5, packets.size());
+    assertArrayEquals(new byte[] {0x36, (byte) 0xf0, (byte) 0xf7, 0x00}, packets.get(0));
+    assertArrayEquals(new byte[] {0x37, (byte) 0xf0, 0x01, (byte) 0xf7}, packets.get(1));
+    assertArrayEquals(new byte[] {0x34, (byte) 0xf0, 0x01, 0x02, 0x35, (byte) 0xf7, 0x00, 0x00},
+        packets.get(2));
+    assertArrayEquals(new byte[] {0x34, (byte) 0xf0, 0x01, 0x02, 0x34, 0x03, 0x04, 0x05},
+        packets.get(3));
+    assertArrayEquals(new byte[] {0x36, 0x06, (byte) 0xf7, 0x00}, packets.get(4));
+  }
+
+  @Test
+  public void testBlock() {
+    assertEquals(true, packetizer.beginBlock());
+    for (int i = 0; i < 5; i++) {
+      send((byte) 0xb0, 0x07, i);
+    }
+    assertEquals(0, packets.size());
+    packetizer.endBlock();
+    assertEquals(3, packets.size());
+    assertEquals(PACKET_SIZE, packets.get(0).length);
+    assertEquals(PACKET_SIZE, packets.get(1).length);
+    assertArrayEquals(new byte[] {0x0b, (byte) 0xb0, 0x07, 0x04}, packets.get(2));
+    for (int i = 0; i < 5; i++) {
+      byte[] packet = packets.get(i / 2);
+      assertEquals(i, packet[(i % 2) * 4 + 3]);
+    }
+
+    // Block mode ends with endBlock().
+    packets.clear();
+    send((byte) 0x80, 0x40, 0x00);
+    assertEquals(1, packets.size());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testEndBlockWithoutBlock() {
+    packetizer.endBlock();
+  }
+
+  @Test
+  public void testWithConverter() {
+    ToWireConverter toWire = new ToWireConverter(packetizer);
+    toWire.beginBlock();
+    toWire.onNoteOn(1, 60, 100);
+    toWire.onPitchBend(1, 0);
+    toWire.onAftertouch(1, 5);
+    toWire.endBlock();
+    assertEquals(2, packets.size());
+    assertArrayEquals(new byte[] {0x09, (byte) 0x91, 60, 100, 0x0e, (byte) 0xe1, 0x00, 0x40},
+        packets.get(0));
+    assertArrayEquals(new byte[] {0x0d, (byte) 0xd1, 0x05, 0x00}, packets.get(1));
+  }
+
+  /**
+   * MIDI messages and their USB MIDI events, after the Code Index Numbers in table 4-1 and the
+   * examples in table 4-2 of the USB MIDI 1.0 specification.
+   */
+  private static final int[][][] CONFORMANCE_TABLE = new int[][][] {
+      {{0x80, 0x40, 0x00}, {0x08, 0x80, 0x40, 0x00}}, // Note off
+      {{0x90, 0x40, 0x7f}, {0x09, 0x90, 0x40, 0x7f}}, // Note on
+      {{0xa0, 0x40, 0x10}, {0x0a, 0xa0, 0x40, 0x10}}, // Poly key press
+      {{0xb1, 0x07, 0x40}, {0x0b, 0xb1, 0x07, 0x40}}, // Control change
+      {{0xc2, 0x05}, {0x0c, 0xc2, 0x05, 0x00}}, // Program change
+      {{0xd3, 0x20}, {0x0d, 0xd3, 0x20, 0x00}}, // Channel pressure
+      {{0xe4, 0x00, 0x40}, {0x0e, 0xe4, 0x00, 0x40}}, // Pitch bend
+      {{0xf1, 0x23}, {0x02, 0xf1, 0x23, 0x00}}, // MTC quarter frame
+      {{0xf3, 0x01}, {0x02, 0xf3, 0x01, 0x00}}, // Song select
+      {{0xf2, 0x03, 0x01}, {0x03, 0xf2, 0x03, 0x01}}, // Song position pointer
+      {{0xf6}, {0x05, 0xf6, 0x00, 0x00}}, // Tune request
+      {{0xf8}, {0x0f, 0xf8, 0x00, 0x00}}, // Timing clock
+      {{0xfe}, {0x0f, 0xfe, 0x00, 0x00}}, // Active sensing
+      {{0xf0, 0xf7}, {0x06, 0xf0, 0xf7, 0x00}},
+      {{0xf0, 0x00, 0xf7}, {0x07, 0xf0, 0x00, 0xf7}},
+      {{0xf0, 0x00, 0x01, 0xf7}, {0x04, 0xf0, 0x00, 0x01, 0x05, 0xf7, 0x00, 0x00}},
+      {{0xf0, 0x00, 0x01, 0x02, 0xf7}, {0x04, 0xf0, 0x00, 0x01, 0x06, 0x02, 0xf7, 0x00}},
+      {{0xf0, 0x00, 0x01, 0x02, 0x03, 0xf7}, {0x04, 0xf0, 0x00, 0x01, 0x07, 0x02, 0x03, 0xf7}}};
+
+  @Test
+  public void testConformance() {
+    for (int[][] entry : CONFORMANCE_TABLE) {
+      packets.clear();
+      send(entry[0]);
+      assertArrayEquals(Arrays.toString(entry[0]), toBytes(entry[1]), events());
+
+      // Same with a virtual cable and one byte per call.
+      packets.clear();
+      packetizer.setVirtualCable(5);
+      for (int b : entry[0]) {
+        send(b);
+      }
+      packetizer.setVirtualCable(0);
+      byte[] expected = toBytes(entry[1]);
+      for (int i = 0; i < expected.length; i += 4) {
+        expected[i] |= 0x50;
+      }
+      assertArrayEquals(Arrays.toString(entry[0]), expected, events());
+    }
+  }
+
+  @Test
+  public void testSysexAcrossCalls() {
+    send(0xf0, 0x01);
+    assertEquals(0, packets.size()); // Not a complete event yet.
+    send(0x02, 0x03, 0x04, 0x05);
+    send(0x06, 0x07, 0xf7);
+    assertArrayEquals(toBytes(0x04, 0xf0, 0x01, 0x02, 0x04, 0x03, 0x04, 0x05, 0x07, 0x06, 0x07,
+        0xf7), events());
+  }
+
+  @Test
+  public void testSysexWithRealTime() {
+    send(0xf0, 0x01, 0xf8, 0x02, 0x03, 0xfe, 0xf7);
+    assertArrayEquals(toBytes(0x0f, 0xf8, 0x00, 0x00, 0x04, 0xf0, 0x01, 0x02, 0x0f, 0xfe, 0x00,
+        0x00, 0x06, 0x03, 0xf7, 0x00), events());
+  }
+
+  @Test
+  public void testIncompleteMessages() {
+    send(0xf0, 0x01, 0x90, 0x40, 0x7f, 0xf2, 0x01, 0xf6, 0xf7);
+    assertArrayEquals(toBytes(0x0f, 0xf0, 0x00, 0x00, 0x0f, 0x01, 0x00, 0x00, 0x09, 0x90, 0x40,
+        0x7f, 0x0f, 0xf2, 0x00, 0x00, 0x0f, 0x01, 0x00, 0x00, 0x05, 0xf6, 0x00, 0x00, 0x0f, 0xf7,
+        0x00, 0x00), events());
+  }
+
+  @Test
+  public void testWithEncoder() {
+    SystemMessageEncoder encoder = new SystemMessageEncoder(new ToWireConverter(packetizer));
+    byte[] sysex = new byte[300];
+    encoder.onSystemExclusive(sysex);
+    int nEvents = 0;
+    for (byte[] packet : packets) {
+      nEvents += packet.length / 4;
+    }
+    assertEquals(101, nEvents); // Three bytes per event, rather than one.
+    byte[] last = packets.get(packets.size() - 1);
+    assertArrayEquals(new byte[] {0x06, 0x00, (byte) 0xf7, 0x00},
+        Arrays.copyOfRange(last, last.length - 4, last.length));
+  }
+
+  private byte[] events() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] packet : packets) {
+      out.write(packet, 0, packet.length);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] toBytes(int... bytes) {
+    byte[] buffer = new byte[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      buffer[i] = (byte) bytes[i];
+    }
+    return buffer;
+  }
+
+  private void send(int... bytes) {
+    byte[] buffer = new byte[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      buffer[i] = (byte) bytes[i];
+    }
+    packetizer.onBytesReceived(buffer.length, buffer);
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark inputs. Synthetic corpora are generated from fixed seeds so that runs are comparable.
+ * Recorded corpora are read from the directory given by the system property midi.corpus, if any:
+ * Standard MIDI Files end in .mid, and raw captures of MIDI wire traffic end in .raw.
+ *
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+final class Corpora {
+
+  static final String SYNTHETIC = "synthetic";
+  static final String RECORDED = "recorded";
+
+  private Corpora() {}
+
+  /**
+   * Returns a wire corpus, i.e., a stream of MIDI bytes.
+   *
+   * @param name either SYNTHETIC or RECORDED; the latter concatenates all .raw files in the corpus
+   *        directory, and falls back to synthetic data if there are none
+   */
+  static byte[] wireStream(String name) throws IOException {
+    if (RECORDED.equals(name)) {
+      List<byte[]> recorded = readCorpus(".raw");
+      if (!recorded.isEmpty()) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] bytes : recorded) {
+          out.write(bytes);
+        }
+        return out.toByteArray();
+      }
+    }
+    return channelStream(1 << 20, 42);
+  }
+
+  /**
+   * Returns a file corpus, i.e., a list of Standard MIDI Files.
+   *
+   * @param name either SYNTHETIC or RECORDED; the latter reads all .mid files in the corpus
+   *        directory, and falls back to synthetic data if there are none
+   */
+  static List<byte[]> midiFiles(String name) throws IOException {
+    if (RECORDED.equals(name)) {
+      List<byte[]> recorded = readCorpus(".mid");
+      if (!recorded.isEmpty()) {
+        return recorded;
+      }
+    }
+    return Arrays.asList(smf(1, 2000, 1), smf(16, 2000, 2), smf(4, 50000, 3));
+  }
+
+  /**
+   * Creates a stream of channel messages, with occasional running status and clock bytes.
+   */
+  static byte[] channelStream(int size, long seed) {
+    Random random = new Random(seed);
+    byte[] stream = new byte[size];
+    int i = 0;
+    while (i < size - 3) {
+      int r = random.nextInt(16);
+      if (r == 0) {
+        stream[i++] = (byte) 0xf8;
+        continue;
+      }
+      int command = 0x80 + ((r & 0x07) << 4);
+      if (command == 0xf0) {
+        command = 0xb0; // Dense controller automation.
+      }
+      if (r < 12) { // Otherwise, reuse the previous status byte.
+        stream[i++] = (byte) (command | random.nextInt(16));
+      }
+      stream[i++] = (byte) random.nextInt(128);
+      stream[i++] = (byte) random.nextInt(128);
+    }
+    return stream;
+  }
+
+  /**
+   * Creates a stream of system messages: sysex dumps of varying length, interleaved with clock
+   * bytes, as well as song position and time code messages.
+   */
+  static byte[] systemStream(int size, long seed) {
+    Random random = new Random(seed);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+    while (out.size() < size - 3) {
+      int r = random.nextInt(8);
+      if (r == 0) {
+        int n = Math.min(1 + random.nextInt(512), size - out.size() - 2);
+        out.write(0xf0);
+        for (int i = 0; i < n; i++) {
+          out.write((i % 64 == 63) ? 0xf8 : random.nextInt(128));
+        }
+        out.write(0xf7);
+      } else if (r == 1) {
+        out.write(0xf2);
+        out.write(random.nextInt(128));
+        out.write(random.nextInt(128));
+      } else if (r == 2) {
+        out.write(0xf1);
+        out.write(random.nextInt(128));
+      } else {
+        out.write(0xf8);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Creates a format 1 Standard MIDI File with a tempo track and the given number of note tracks.
+   */
+  static byte[] smf(int nTracks, int notesPerTrack, long seed) {
+    return smf(nTracks, notesPerTrack, 32, 1920, seed);
+  }
+
+  /**
+   * Creates a format 1 Standard MIDI File with a tempo track and the given number of note tracks.
+   *
+   * @param nTempos number of tempo changes
+   * @param tempoInterval ticks between tempo changes
+   */
+  static byte[] smf(int nTracks, int notesPerTrack, int nTempos, int tempoInterval, long seed) {
+    Random random = new Random(seed);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeChunkHeader(out, "MThd", 6);
+    writeShort(out, 1);
+    writeShort(out, nTracks + 1);
+    writeShort(out, 480);
+
+    ByteArrayOutputStream track = new ByteArrayOutputStream();
+    for (int i = 0; i < nTempos; i++) {
+      writeVarInt(track, tempoInterval);
+      int tempo = 400000 + random.nextInt(200000);
+      track.write(new byte[] {(byte) 0xff, 0x51, 0x03, (byte) (tempo >> 16), (byte) (tempo >> 8),
+          (byte) tempo}, 0, 6);
+    }
+    writeTrack(out, track);
+
+    for (int t = 0; t < nTracks; t++) {
+      track.reset();
+      int channel = t & 0x0f;
+      for (int i = 0; i < notesPerTrack; i++) {
+        int key = 36 + random.nextInt(60);
+        writeVarInt(track, random.nextInt(4) * 60);
+        track.write(0x90 | channel);
+        track.write(key);
+        track.write(1 + random.nextInt(127));
+        if (random.nextInt(8) == 0) {
+          writeVarInt(track, 0);
+          track.write(0xb0 | channel);
+          track.write(1);
+          track.write(random.nextInt(128));
+        }
+        writeVarInt(track, 30 + random.nextInt(240));
+        track.write(0x80 | channel);
+        track.write(key);
+        track.write(0);
+      }
+      writeTrack(out, track);
+    }
+    return out.toByteArray();
+  }
+
+  private static void writeTrack(ByteArrayOutputStream out, ByteArrayOutputStream track) {
+    writeVarInt(track, 0);
+    track.write(new byte[] {(byte) 0xff, 0x2f, 0x00}, 0, 3); // End of track.
+    writeChunkHeader(out, "MTrk", track.size());
+    byte[] bytes = track.toByteArray();
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeChunkHeader(ByteArrayOutputStream out, String type, int length) {
+    for (int i = 0; i < 4; i++) {
+      out.write(type.charAt(i));
+    }
+    writeShort(out, length >>> 16);
+    writeShort(out, length);
+  }
+
+  private static void writeShort(ByteArrayOutputStream out, int value) {
+    out.write(value >> 8);
+    out.write(value);
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, int value) {
+    for (int shift = 21; shift > 0; shift -= 7) {
+      if (value >= (1 << shift)) {
+        out.write(0x80 | ((value >> shift) & 0x7f));
+      }
+    }
+    out.write(value & 0x7f);
+  }
+
+  private static List<byte[]> readCorpus(String suffix) throws IOException {
+    List<byte[]> files = new ArrayList<byte[]>();
+    String dirName = System.getProperty("midi.corpus");
+    if (dirName == null) {
+      return files;
+    }
+    File[] entries = new File(dirName).listFiles();
+    if (entries == null) {
+      throw new IOException("Not a directory: " + dirName);
+    }
+    Arrays.sort(entries);
+    for (File file : entries) {
+      if (file.isFile() && file.getName().toLowerCase().endsWith(suffix)) {
+        files.add(readFile(file));
+      }
+    }
+    return files;
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.noisepages.nettoyeur.midi.FromWireConverter;
+import com.noisepages.nettoyeur.midi.MidiReceiver;
+
+/**
+ * Decodes a wire corpus in USB-sized chunks. One operation decodes the entire corpus.
+ *
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FromWireConverterBenchmark {
+
+  /**
+   * Sums all arguments, so that the JIT can't discard decoded messages.
+   */
+  static class ChecksumReceiver implements MidiReceiver {
+    long sum = 0;
+
+    @Override
+    public void onNoteOff(int channel, int key, int velocity) {
+      sum += channel + key + velocity;
+    }
+
+    @Override
+    public void onNoteOn(int channel, int key, int velocity) {
+      sum += channel + key + velocity;
+    }
+
+    @Override
+    public void onPolyAftertouch(int channel, int key, int velocity) {
+      sum += channel + key + velocity;
+    }
+
+    @Override
+    public void onControlChange(int channel, int controller, int value) {
+      sum += channel + controller + value;
+    }
+
+    @Override
+    public void onProgramChange(int channel, int program) {
+      sum += channel + program;
+    }
+
+    @Override
+    public void onAftertouch(int channel, int velocity) {
+      sum += channel + velocity;
+    }
+
+    @Override
+    public void onPitchBend(int channel, int value) {
+      sum += channel + value;
+    }
+
+    @Override
+    public void onRawByte(byte value) {
+      sum += value;
+    }
+
+    @Override
+    public boolean beginBlock() {
+      return false;
+    }
+
+    @Override
+    public void endBlock() {}
+  }
+
+  private static final int CHUNK_SIZE = 64;
+
+  @Param({Corpora.SYNTHETIC, Corpora.RECORDED})
+  public String corpus;
+
+  private byte[] stream;
+  private final byte[] chunk = new byte[CHUNK_SIZE];
+  private final ChecksumReceiver receiver = new ChecksumReceiver();
+  private FromWireConverter converter;
+
+  @Setup
+  public void setUp() throws IOException {
+    stream = Corpora.wireStream(corpus);
+    converter = new FromWireConverter(receiver);
+  }
+
+  @Benchmark
+  public long decode() {
+    for (int i = 0; i < stream.length; i += CHUNK_SIZE) {
+      int n = Math.min(CHUNK_SIZE, stream.length - i);
+      System.arraycopy(stream, i, chunk, 0, n);
+      converter.onBytesReceived(n, chunk);
+    }
+    return receiver.sum;
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.benchmarks;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.noisepages.nettoyeur.midi.file.InvalidMidiDataException;
+import com.noisepages.nettoyeur.midi.file.MidiFileCursor;
+import com.noisepages.nettoyeur.midi.file.StandardMidiFileReader;
+import com.noisepages.nettoyeur.midi.player.MidiSequence;
+import com.noisepages.nettoyeur.midi.player.MidiSequenceObserver;
+
+/**
+ * Loads Standard MIDI Files, both with the raw reader and as a playable {@link MidiSequence}, and
+ * streams them with a {@link MidiFileCursor}. The mapped and parallel variants read the corpus from
+ * temporary files. One operation processes every file of the corpus.
+ *
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MidiFileBenchmark {
+
+  private static final MidiSequenceObserver observer = new MidiSequenceObserver() {
+    @Override
+    public void onPlaybackFinished(MidiSequence sequence) {}
+  };
+
+  @Param({Corpora.SYNTHETIC, Corpora.RECORDED})
+  public String corpus;
+
+  private List<byte[]> files;
+  private final List<File> tempFiles = new ArrayList<File>();
+  private ForkJoinPool pool;
+
+  @Setup
+  public void setUp() throws IOException {
+    files = Corpora.midiFiles(corpus);
+    for (byte[] file : files) {
+      File tempFile = File.createTempFile("bench", ".mid");
+      OutputStream out = new FileOutputStream(tempFile);
+      try {
+        out.write(file);
+      } finally {
+        out.close();
+      }
+      tempFiles.add(tempFile);
+    }
+    pool = new ForkJoinPool();
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (File tempFile : tempFiles) {
+      tempFile.delete();
+    }
+    tempFiles.clear();
+    pool.shutdown();
+  }
+
+  @Benchmark
+  public void readSequence(Blackhole blackhole) throws InvalidMidiDataException, IOException {
+    StandardMidiFileReader reader = new StandardMidiFileReader();
+    for (byte[] file : files) {
+      blackhole.consume(reader.getSequence(new ByteArrayInputStream(file)));
+    }
+  }
+
+  @Benchmark
+  public void readMappedSequence(Blackhole blackhole) throws InvalidMidiDataException, IOException {
+    StandardMidiFileReader reader = new StandardMidiFileReader();
+    for (File file : tempFiles) {
+      blackhole.consume(reader.getSequence(file));
+    }
+  }
+
+  @Benchmark
+  public void readParallelSequence(Blackhole blackhole) throws InvalidMidiDataException,
+      IOException {
+    StandardMidiFileReader reader = new StandardMidiFileReader();
+    for (File file : tempFiles) {
+      blackhole.consume(reader.getSequence(file, pool));
+    }
+  }
+
+  @Benchmark
+  public void createMidiSequence(Blackhole blackhole) throws InvalidMidiDataException, IOException {
+    for (byte[] file : files) {
+      blackhole.consume(new MidiSequence(new ByteArrayInputStream(file), observer));
+    }
+  }
+
+  @Benchmark
+  public void streamSequence(Blackhole blackhole) throws InvalidMidiDataException {
+    for (byte[] file : files) {
+      MidiFileCursor cursor = new MidiFileCursor(ByteBuffer.wrap(file));
+      while (cursor.next()) {
+        blackhole.consume(cursor.getMicrosecond());
+      }
+    }
+  }
+}
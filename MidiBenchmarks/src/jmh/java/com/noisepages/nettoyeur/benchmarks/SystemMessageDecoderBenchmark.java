@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.benchmarks;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.noisepages.nettoyeur.midi.util.SysexStreamReceiver;
+import com.noisepages.nettoyeur.midi.util.SystemMessageDecoder;
+import com.noisepages.nettoyeur.midi.util.SystemMessageReceiver;
+
+/**
+ * Decodes a synthetic stream of system messages, mostly sysex dumps and clock bytes. One operation
+ * decodes the entire stream, either byte by byte, in bulk, or in bulk with streamed sysex.
+ *
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SystemMessageDecoderBenchmark {
+
+  private static class ChecksumReceiver extends SystemMessageReceiver.DummyReceiver {
+    long sum = 0;
+
+    @Override
+    public void onSystemExclusive(byte[] sysex) {
+      sum += sysex.length;
+    }
+
+    @Override
+    public void onTimeCode(int value) {
+      sum += value;
+    }
+
+    @Override
+    public void onSongPosition(int pointer) {
+      sum += pointer;
+    }
+
+    @Override
+    public void onTimingClock() {
+      sum++;
+    }
+  }
+
+  private static class ChecksumSysexReceiver implements SysexStreamReceiver {
+    long sum = 0;
+
+    @Override
+    public void onSysexBegin() {}
+
+    @Override
+    public void onSysexData(byte[] buffer, int offset, int length) {
+      sum += length;
+    }
+
+    @Override
+    public void onSysexEnd(boolean complete) {}
+  }
+
+  private byte[] stream;
+  private final ChecksumReceiver receiver = new ChecksumReceiver();
+  private final ChecksumSysexReceiver sysexReceiver = new ChecksumSysexReceiver();
+  private SystemMessageDecoder decoder;
+  private SystemMessageDecoder streamingDecoder;
+
+  @Setup
+  public void setUp() {
+    stream = Corpora.systemStream(1 << 20, 42);
+    decoder = new SystemMessageDecoder(receiver);
+    streamingDecoder = new SystemMessageDecoder(receiver, sysexReceiver);
+  }
+
+  @Benchmark
+  public long decode() {
+    for (byte b : stream) {
+      decoder.decodeByte(b);
+    }
+    return receiver.sum;
+  }
+
+  @Benchmark
+  public long decodeBytes() {
+    decoder.decodeBytes(stream, 0, stream.length);
+    return receiver.sum;
+  }
+
+  @Benchmark
+  public long decodeStreaming() {
+    streamingDecoder.decodeBytes(stream, 0, stream.length);
+    return receiver.sum + sysexReceiver.sum;
+  }
+}
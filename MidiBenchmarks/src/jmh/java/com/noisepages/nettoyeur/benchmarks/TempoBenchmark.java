@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.noisepages.nettoyeur.midi.file.InvalidMidiDataException;
+import com.noisepages.nettoyeur.midi.file.MidiUtils;
+import com.noisepages.nettoyeur.midi.file.MidiUtils.TempoCache;
+import com.noisepages.nettoyeur.midi.file.Sequence;
+import com.noisepages.nettoyeur.midi.file.StandardMidiFileReader;
+
+/**
+ * Converts between ticks and microseconds in random order, on files with tempo automation. One
+ * operation converts 1024 ticks and 1024 microsecond times.
+ *
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TempoBenchmark {
+
+  @Param({"32", "4096"})
+  public int nTempos;
+
+  private Sequence sequence;
+  private TempoCache cache;
+  private final long[] ticks = new long[1024];
+  private final long[] micros = new long[1024];
+
+  @Setup
+  public void setUp() throws InvalidMidiDataException, IOException {
+    byte[] file = Corpora.smf(1, 100, nTempos, 120, 7);
+    sequence = new StandardMidiFileReader().getSequence(new ByteArrayInputStream(file));
+    cache = new TempoCache(sequence);
+    long tickLength = sequence.getTickLength();
+    long microsecondLength = sequence.getMicrosecondLength();
+    Random random = new Random(1);
+    for (int i = 0; i < ticks.length; i++) {
+      ticks[i] = (long) (random.nextDouble() * tickLength);
+      micros[i] = (long) (random.nextDouble() * microsecondLength);
+    }
+  }
+
+  @Benchmark
+  public void tick2microsecond(Blackhole blackhole) {
+    for (long tick : ticks) {
+      blackhole.consume(MidiUtils.tick2microsecond(sequence, tick, cache));
+    }
+  }
+
+  @Benchmark
+  public void microsecond2tick(Blackhole blackhole) {
+    for (long micro : micros) {
+      blackhole.consume(MidiUtils.microsecond2tick(sequence, micro, cache));
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.benchmarks;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.noisepages.nettoyeur.common.RawByteReceiver;
+import com.noisepages.nettoyeur.midi.FromWireConverter;
+import com.noisepages.nettoyeur.midi.PackedMidiReceiver;
+import com.noisepages.nettoyeur.midi.ToWireConverter;
+import com.noisepages.nettoyeur.midi.util.PackedMessageDecoder;
+
+/**
+ * Encodes the messages of a wire corpus. The corpus is decoded into packed messages once, during
+ * setup; one operation unpacks all of them and passes them to the converter, so that the results
+ * include the (small) cost of unpacking.
+ *
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ToWireConverterBenchmark {
+
+  private static class ChecksumReceiver implements RawByteReceiver {
+    long sum = 0;
+
+    @Override
+    public void onBytesReceived(int nBytes, byte[] buffer) {
+      for (int i = 0; i < nBytes; i++) {
+        sum += buffer[i];
+      }
+    }
+
+    @Override
+    public boolean beginBlock() {
+      return false;
+    }
+
+    @Override
+    public void endBlock() {}
+  }
+
+  private static class IntArrayBuilder {
+    private int[] values = new int[1024];
+    private int size = 0;
+
+    void add(int count, int[] batch) {
+      if (size + count > values.length) {
+        values = Arrays.copyOf(values, Math.max(2 * values.length, size + count));
+      }
+      System.arraycopy(batch, 0, values, size, count);
+      size += count;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+
+  @Param({Corpora.SYNTHETIC, Corpora.RECORDED})
+  public String corpus;
+
+  @Param({"false", "true"})
+  public boolean runningStatus;
+
+  private int[] messages;
+  private final ChecksumReceiver receiver = new ChecksumReceiver();
+  private PackedMessageDecoder decoder;
+
+  @Setup
+  public void setUp() throws IOException {
+    byte[] stream = Corpora.wireStream(corpus);
+    final IntArrayBuilder builder = new IntArrayBuilder();
+    new FromWireConverter(new PackedMidiReceiver() {
+      @Override
+      public void onMessagesReceived(int count, int[] packed) {
+        builder.add(count, packed);
+      }
+    }).onBytesReceived(stream.length, stream);
+    messages = builder.toArray();
+    ToWireConverter toWire = new ToWireConverter(receiver);
+    toWire.setRunningStatus(runningStatus);
+    decoder = new PackedMessageDecoder(toWire);
+  }
+
+  @Benchmark
+  public long encode() {
+    for (int message : messages) {
+      decoder.decodeMessage(message);
+    }
+    return receiver.sum;
+  }
+}
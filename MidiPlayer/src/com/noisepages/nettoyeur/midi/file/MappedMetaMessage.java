@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.file;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A meta message whose data remains in the buffer that it was parsed from,
+ * typically a memory-mapped file.  The data is only copied on demand.
+ *
+ * @author Peter Brinkmann
+ */
+class MappedMetaMessage extends MetaMessage {
+    private ByteBuffer buffer;  // null once the message has been replaced
+    private final int type;
+    private final int dataOffset;
+    private final int dataLength;
+
+    MappedMetaMessage(int type, ByteBuffer buffer, int dataOffset, int dataLength) {
+        this.buffer = buffer;
+        this.type = type;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+        int varIntLength = 1;
+        for (int n = dataLength >> 7; n > 0; n >>= 7) {
+            varIntLength++;
+        }
+        length = 2 + varIntLength + dataLength;
+    }
+
+    public void setMessage(int type, byte[] data, int length) throws InvalidMidiDataException {
+        super.setMessage(type, data, length);
+        buffer = null;
+    }
+
+    public int getType() {
+        return (buffer != null) ? type : super.getType();
+    }
+
+    public byte[] getMessage() {
+        if (buffer == null) {
+            return super.getMessage();
+        }
+        byte[] message = new byte[length];
+        message[0] = (byte) META;
+        message[1] = (byte) type;
+        int pos = 2;
+        for (int shift = (length - dataLength - 3) * 7; shift > 0; shift -= 7) {
+            message[pos++] = (byte) (((dataLength >> shift) & 0x7F) | 0x80);
+        }
+        message[pos++] = (byte) (dataLength & 0x7F);
+        MidiUtils.getBytes(buffer, dataOffset, message, pos, dataLength);
+        return message;
+    }
+
+    public ByteBuffer getDataBuffer() {
+        if (buffer == null) {
+            return super.getDataBuffer();
+        }
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(dataOffset + dataLength);
+        slice.position(dataOffset);
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    public byte[] getData() {
+        if (buffer == null) {
+            return super.getData();
+        }
+        byte[] data = new byte[dataLength];
+        MidiUtils.getBytes(buffer, dataOffset, data, 0, dataLength);
+        return data;
+    }
+
+    public Object clone() {
+        return new MetaMessage(getMessage());
+    }
+}
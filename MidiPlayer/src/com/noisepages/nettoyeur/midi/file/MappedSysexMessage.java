@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.file;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A system exclusive message whose data remains in the buffer that it was
+ * parsed from, typically a memory-mapped file.  The data is only copied on
+ * demand.
+ *
+ * @author Peter Brinkmann
+ */
+class MappedSysexMessage extends SysexMessage {
+    private ByteBuffer buffer;  // null once the message has been replaced
+    private final int status;
+    private final int dataOffset;
+
+    MappedSysexMessage(int status, ByteBuffer buffer, int dataOffset, int dataLength) {
+        this.buffer = buffer;
+        this.status = status;
+        this.dataOffset = dataOffset;
+        length = 1 + dataLength;
+    }
+
+    public void setMessage(byte[] data, int length) throws InvalidMidiDataException {
+        super.setMessage(data, length);
+        buffer = null;
+    }
+
+    public void setMessage(int status, byte[] data, int length) throws InvalidMidiDataException {
+        super.setMessage(status, data, length);
+        buffer = null;
+    }
+
+    public int getStatus() {
+        return (buffer != null) ? status : super.getStatus();
+    }
+
+    public byte[] getMessage() {
+        if (buffer == null) {
+            return super.getMessage();
+        }
+        byte[] message = new byte[length];
+        message[0] = (byte) status;
+        MidiUtils.getBytes(buffer, dataOffset, message, 1, length - 1);
+        return message;
+    }
+
+    public ByteBuffer getDataBuffer() {
+        if (buffer == null) {
+            return super.getDataBuffer();
+        }
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(dataOffset + length - 1);
+        slice.position(dataOffset);
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    public byte[] getData() {
+        if (buffer == null) {
+            return super.getData();
+        }
+        byte[] data = new byte[length - 1];
+        MidiUtils.getBytes(buffer, dataOffset, data, 0, length - 1);
+        return data;
+    }
+
+    public Object clone() {
+        return new SysexMessage(getMessage());
+    }
+}
@@ -25,6 +25,8 @@
 
 package com.noisepages.nettoyeur.midi.file;
 
+import java.nio.ByteBuffer;
+
 
 
 /**
@@ -172,6 +174,17 @@ public class MetaMessage extends MidiMessage {
 
 
 
+    /**
+     * Obtains the data of the meta message without copying it.
+     *
+     * @return a read-only buffer holding the data of the meta message,
+     * from position zero to its limit
+     */
+    public ByteBuffer getDataBuffer() {
+        return ByteBuffer.wrap(data, length - dataLength, dataLength).slice().asReadOnlyBuffer();
+    }
+
+
     /**
      * Obtains a copy of the data for the meta message.  The returned
      * array of bytes does not include the status byte or the message
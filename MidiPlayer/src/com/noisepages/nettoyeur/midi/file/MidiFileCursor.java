@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.file;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cursor over all events of a Standard MIDI File in time order. The cursor merges the events of
+ * all tracks on the fly, with a heap of {@link TrackCursor} instances, and converts ticks to
+ * microseconds incrementally, following the tempo changes in the first track. Its memory usage is
+ * proportional to the number of tracks, not to the number of events, and it only reads the chunk
+ * headers of the file up front.
+ *
+ * Events with equal ticks are returned in track order. Only files of type 0 and 1 are supported.
+ *
+ * @author Peter Brinkmann
+ */
+public class MidiFileCursor {
+
+    private static final int MThd_MAGIC = 0x4d546864;  // 'MThd'
+    private static final int MTrk_MAGIC = 0x4d54726b;  // 'MTrk'
+
+    private final int type;
+    private final int byteLength;
+    private final float divisionType;
+    private final int resolution;
+    private final TrackCursor[] tracks;
+    private final int[] heap;  // track indices, ordered by (tick, track index)
+    private int heapSize = 0;
+    private boolean started = false;
+    private int current = -1;
+    private long microsecond;
+
+    // Tempo at the time of the current event, and the tick and time of the last tempo change.
+    private int tempoMPQ;
+    private long anchorTick;
+    private long anchorMicrosecond;
+
+    /**
+     * Creates a cursor for the Standard MIDI File in the given buffer, e.g., a memory-mapped file.
+     * The buffer is accessed with absolute gets only; its position and limit must not change while
+     * the cursor is in use.
+     *
+     * @param buffer buffer holding the file, from its position to its limit
+     * @throws InvalidMidiDataException if the file header is invalid or the type is unsupported
+     */
+    public MidiFileCursor(ByteBuffer buffer) throws InvalidMidiDataException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        byteLength = limit - start;
+        if (limit - start < 14 || buffer.getInt(start) != MThd_MAGIC) {
+            throw new InvalidMidiDataException("not a valid MIDI file");
+        }
+        int headerLength = buffer.getInt(start + 4);
+        type = buffer.getShort(start + 8);
+        int numTracks = buffer.getShort(start + 10) & 0xFFFF;
+        int timing = buffer.getShort(start + 12);
+        if ((type != 0) && (type != 1)) {
+            throw new InvalidMidiDataException("Invalid or unsupported file type: "  + type);
+        }
+        if (timing > 0) {
+            divisionType = Sequence.PPQ;
+            resolution = timing;
+        } else {
+            int frameCode = (-1 * timing) >> 8;
+            switch (frameCode) {
+            case 24:
+                divisionType = Sequence.SMPTE_24;
+                break;
+            case 25:
+                divisionType = Sequence.SMPTE_25;
+                break;
+            case 29:
+                divisionType = Sequence.SMPTE_30DROP;
+                break;
+            case 30:
+                divisionType = Sequence.SMPTE_30;
+                break;
+            default:
+                throw new InvalidMidiDataException("Unknown frame code: " + frameCode);
+            }
+            resolution = timing & 0xFF;
+        }
+
+        // Locate the track chunks; like StandardMidiFileReader, skip unknown chunks and ignore
+        // truncated ones.
+        TrackCursor[] found = new TrackCursor[numTracks];
+        int n = 0;
+        long pos = (long) start + 8 + headerLength;
+        while (n < numTracks && pos + 8 <= limit) {
+            int magic = buffer.getInt((int) pos);
+            long length = buffer.getInt((int) pos + 4) & 0xFFFFFFFFL;
+            pos += 8;
+            if (pos + length > limit) {
+                break;
+            }
+            if (magic == MTrk_MAGIC) {
+                found[n++] = new TrackCursor(buffer, (int) pos, (int) length);
+            }
+            pos += length;
+        }
+        tracks = new TrackCursor[n];
+        System.arraycopy(found, 0, tracks, 0, n);
+        heap = new int[n];
+        rewind();
+    }
+
+    /**
+     * @return the file type, 0 or 1
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return the timing division type, e.g., Sequence.PPQ
+     */
+    public float getDivisionType() {
+        return divisionType;
+    }
+
+    /**
+     * @return the timing resolution, in ticks per beat or ticks per frame
+     */
+    public int getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Returns the file format, without reading any track data. The duration is reported as unknown.
+     */
+    public MidiFileFormat getMidiFileFormat() {
+        return new MidiFileFormat(type, divisionType, resolution, byteLength,
+                                  MidiFileFormat.UNKNOWN_LENGTH);
+    }
+
+    /**
+     * @return number of tracks
+     */
+    public int getTrackCount() {
+        return tracks.length;
+    }
+
+    /**
+     * Moves the cursor back to the beginning of the file. The cursor will be positioned before the
+     * first event.
+     */
+    public void rewind() {
+        for (TrackCursor track : tracks) {
+            track.rewind();
+        }
+        heapSize = 0;
+        started = false;
+        current = -1;
+        microsecond = 0;
+        tempoMPQ = MidiUtils.DEFAULT_TEMPO_MPQ;
+        anchorTick = 0;
+        anchorMicrosecond = 0;
+    }
+
+    /**
+     * Advances to the next event in time order.
+     *
+     * @return false if the end of the file has been reached
+     * @throws InvalidMidiDataException if the track data is corrupt
+     */
+    public boolean next() throws InvalidMidiDataException {
+        if (!started) {
+            started = true;
+            for (int i = 0; i < tracks.length; i++) {
+                if (tracks[i].next()) {
+                    heap[heapSize++] = i;
+                }
+            }
+            for (int i = heapSize / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        } else if (current >= 0) {
+            if (!tracks[current].next()) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(0);
+        }
+        if (heapSize == 0) {
+            current = -1;
+            return false;
+        }
+        current = heap[0];
+        TrackCursor track = tracks[current];
+        long tick = track.getTick();
+        if (divisionType != Sequence.PPQ) {
+            microsecond = (long) (1000000 * ((double) tick / (double) (divisionType * resolution)));
+        } else {
+            microsecond = anchorMicrosecond
+                + MidiUtils.ticks2microsec(tick - anchorTick, tempoMPQ, resolution);
+            int tempo = (current == 0) ? track.getTempoMPQ() : -1;
+            if (tempo >= 0) {
+                // Tempo events only count in the first track, as in MidiUtils.TempoCache.
+                anchorTick = tick;
+                anchorMicrosecond = microsecond;
+                tempoMPQ = tempo;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the track cursor of the current event, for access to its content
+     */
+    public TrackCursor getEvent() {
+        return tracks[current];
+    }
+
+    /**
+     * @return index of the track of the current event
+     */
+    public int getTrackIndex() {
+        return current;
+    }
+
+    /**
+     * @return tick of the current event
+     */
+    public long getTick() {
+        return tracks[current].getTick();
+    }
+
+    /**
+     * @return time of the current event in microseconds
+     */
+    public long getMicrosecond() {
+        return microsecond;
+    }
+
+    private void siftDown(int i) {
+        int index = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && less(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!less(heap[child], index)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = index;
+    }
+
+    private boolean less(int a, int b) {
+        long ta = tracks[a].getTick();
+        long tb = tracks[b].getTick();
+        return ta < tb || (ta == tb && a < b);
+    }
+}
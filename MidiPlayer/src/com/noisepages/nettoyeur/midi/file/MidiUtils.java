@@ -25,6 +25,7 @@
 
 package com.noisepages.nettoyeur.midi.file;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 // TODO:
@@ -136,42 +137,7 @@ public class MidiUtils {
         if (cache == null) {
             cache = new TempoCache(seq);
         }
-
-        int resolution = seq.getResolution();
-
-        long[] ticks = cache.ticks;
-        int[] tempos = cache.tempos; // in MPQ
-        int cacheCount = tempos.length;
-
-        // optimization to not always go through entire list of tempo events
-        int snapshotIndex = cache.snapshotIndex;
-        int snapshotMicro = cache.snapshotMicro;
-
-        // walk through all tempo changes and add time for the respective blocks
-        long us = 0; // microsecond
-
-        if (snapshotIndex <= 0
-            || snapshotIndex >= cacheCount
-            || ticks[snapshotIndex] > tick) {
-            snapshotMicro = 0;
-            snapshotIndex = 0;
-        }
-        if (cacheCount > 0) {
-            // this implementation needs a tempo event at tick 0!
-            int i = snapshotIndex + 1;
-            while (i < cacheCount && ticks[i] <= tick) {
-                snapshotMicro += ticks2microsec(ticks[i] - ticks[i - 1], tempos[i - 1], resolution);
-                snapshotIndex = i;
-                i++;
-            }
-            us = snapshotMicro
-                + ticks2microsec(tick - ticks[snapshotIndex],
-                                 tempos[snapshotIndex],
-                                 resolution);
-        }
-        cache.snapshotIndex = snapshotIndex;
-        cache.snapshotMicro = snapshotMicro;
-        return us;
+        return cache.getTempoMap(seq.getResolution()).tickToMicrosecond(tick);
     }
 
     /**
@@ -194,31 +160,19 @@ public class MidiUtils {
         if (cache == null) {
             cache = new TempoCache(seq);
         }
-        long[] ticks = cache.ticks;
-        int[] tempos = cache.tempos; // in MPQ
-        int cacheCount = tempos.length;
-
-        int resolution = seq.getResolution();
-
-        long us = 0; long tick = 0; int i = 1;
-
-        // walk through all tempo changes and add time for the respective blocks
-        // to find the right tick
-        if (micros > 0 && cacheCount > 0) {
-            // this loop requires that the first tempo Event is at time 0
-            while (i < cacheCount) {
-                long nextTime = us + ticks2microsec(ticks[i] - ticks[i - 1],
-                                                    tempos[i - 1], resolution);
-                if (nextTime > micros) {
-                    break;
-                }
-                us = nextTime;
-                i++;
-            }
-            tick = ticks[i - 1] + microsec2ticks(micros - us, tempos[i - 1], resolution);
-        }
-        cache.currTempo = tempos[i - 1];
-        return tick;
+        TempoMap map = cache.getTempoMap(seq.getResolution());
+        cache.currTempo = map.getTempoMPQAtMicrosecond(micros);
+        return map.microsecondToTick(micros);
+    }
+
+
+    /**
+     * Copies bytes out of a buffer, without changing its position.
+     */
+    static void getBytes(ByteBuffer src, int index, byte[] dst, int offset, int length) {
+        ByteBuffer slice = src.duplicate();
+        slice.position(index);
+        slice.get(dst, offset, length);
     }
 
 
@@ -262,10 +216,8 @@ public class MidiUtils {
     public static class TempoCache {
         long[] ticks;
         int[] tempos; // in MPQ
-        // index in ticks/tempos at the snapshot
-        int snapshotIndex = 0;
-        // microsecond at the snapshot
-        int snapshotMicro = 0;
+        // tempo map for the resolution of the last conversion, built on demand
+        private TempoMap map = null;
 
         int currTempo; // MPQ, used as return value for microsecond2tick
 
@@ -276,8 +228,6 @@ public class MidiUtils {
             ticks = new long[1];
             tempos = new int[1];
             tempos[0] = DEFAULT_TEMPO_MPQ;
-            snapshotIndex = 0;
-            snapshotMicro = 0;
         }
 
         public TempoCache(Sequence seq) {
@@ -324,8 +274,19 @@ public class MidiUtils {
                 ticks[e] = evt.getTick();
                 tempos[e] = getTempoMPQ(evt.getMessage());
             }
-            snapshotIndex = 0;
-            snapshotMicro = 0;
+            map = null;
+        }
+
+        /**
+         * Returns the tempo map of the cached tempo changes.
+         *
+         * @param resolution ticks per quarter note of the sequence
+         */
+        public synchronized TempoMap getTempoMap(int resolution) {
+            if (map == null || map.getResolution() != resolution) {
+                map = new TempoMap(ticks, tempos, resolution);
+            }
+            return map;
         }
 
         public int getCurrTempoMPQ() {
@@ -337,16 +298,13 @@ public class MidiUtils {
         }
 
         synchronized float getTempoMPQAt(long tick, float startTempoMPQ) {
-            for (int i = 0; i < ticks.length; i++) {
-                if (ticks[i] > tick) {
-                    if (i > 0) i--;
-                    if (startTempoMPQ > 0 && i == 0 && firstTempoIsFake) {
-                        return startTempoMPQ;
-                    }
-                    return (float) tempos[i];
-                }
+            if (startTempoMPQ > 0 && firstTempoIsFake
+                    && (ticks.length == 1 || ticks[1] > tick)) {
+                return startTempoMPQ;
             }
-            return tempos[tempos.length - 1];
+            // the resolution doesn't matter for tempo lookups by tick
+            TempoMap m = (map != null) ? map : getTempoMap(1);
+            return (float) m.getTempoMPQAt(tick);
         }
 
     }
@@ -32,7 +32,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import com.noisepages.nettoyeur.midi.file.spi.MidiFileReader;
 
@@ -167,7 +177,41 @@ public class StandardMidiFileReader extends MidiFileReader {
 
 
     public Sequence getSequence(InputStream stream) throws InvalidMidiDataException, IOException {
+        return getSequence(stream, new SMFParser(), null);
+    }
+
+
+    /**
+     * Reads a sequence from a buffer, typically a memory-mapped file, without
+     * copying the track data.  System exclusive and meta messages refer to the
+     * buffer and only copy their data on demand, so the buffer must not be
+     * modified while the sequence is in use.
+     *
+     * @param buffer buffer holding the file, from its position to its limit
+     */
+    public Sequence getSequence(ByteBuffer buffer) throws InvalidMidiDataException, IOException {
+        return getSequence(buffer, null);
+    }
+
+
+    /**
+     * Reads a sequence from a buffer, like {@link #getSequence(ByteBuffer)},
+     * but parses the tracks concurrently.  The chunk boundaries are located
+     * first; then each track is parsed into its own <code>Track</code> on the
+     * given executor, e.g., a fork-join pool.  The result is identical to
+     * that of the serial parser, including the choice of exception if more
+     * than one track is invalid.
+     *
+     * @param executor executor for parsing tracks, or null to parse serially
+     */
+    public Sequence getSequence(ByteBuffer buffer, ExecutorService executor) throws InvalidMidiDataException, IOException {
         SMFParser smfParser = new SMFParser();
+        smfParser.mappedInput = new ByteBufferInputStream(buffer);
+        return getSequence(smfParser.mappedInput, smfParser, executor);
+    }
+
+
+    private Sequence getSequence(InputStream stream, SMFParser smfParser, ExecutorService executor) throws InvalidMidiDataException, IOException {
         MidiFileFormat format = getMidiFileFormatFromStream(stream,
                                                             MidiFileFormat.UNKNOWN_LENGTH,
                                                             smfParser);
@@ -180,6 +224,11 @@ public class StandardMidiFileReader extends MidiFileReader {
         // construct the sequence object
         Sequence sequence = new Sequence(format.getDivisionType(), format.getResolution());
 
+        if (executor != null) {
+            readTracksConcurrently(smfParser, sequence, executor);
+            return sequence;
+        }
+
         // for each track, go to the beginning and read the track events
         for (int i = 0; i < smfParser.tracks; i++) {
             if (smfParser.nextTrack()) {
@@ -192,6 +241,54 @@ public class StandardMidiFileReader extends MidiFileReader {
     }
 
 
+    private void readTracksConcurrently(SMFParser smfParser, Sequence sequence, ExecutorService executor) throws InvalidMidiDataException, IOException {
+        // locate all tracks first, then parse them independently
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        try {
+            for (int i = 0; i < smfParser.tracks; i++) {
+                if (!smfParser.nextTrack()) {
+                    break;
+                }
+                final SMFParser trackParser = smfParser.trackParser();
+                final Track track = sequence.createTrack();
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws InvalidMidiDataException, IOException {
+                        trackParser.readTrack(track);
+                        return null;
+                    }
+                }));
+            }
+            // wait in track order, so that the first failure is the one the serial parser reports
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while parsing tracks");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            // fork-join pools wrap checked exceptions in plain runtime exceptions
+            while (cause.getClass() == RuntimeException.class && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof InvalidMidiDataException) {
+                throw (InvalidMidiDataException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause.toString());
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+
 
     public Sequence getSequence(URL url) throws InvalidMidiDataException, IOException {
         InputStream is = url.openStream();  // throws IOException
@@ -206,16 +303,70 @@ public class StandardMidiFileReader extends MidiFileReader {
     }
 
 
+    /**
+     * Reads a sequence from a file.  The file is memory-mapped rather than
+     * read, see {@link #getSequence(ByteBuffer)}.
+     */
     public Sequence getSequence(File file) throws InvalidMidiDataException, IOException {
-        InputStream is = new FileInputStream(file); // throws IOException
-        is = new BufferedInputStream(is, bisBufferSize);
-        Sequence seq = null;
+        return getSequence(file, null);
+    }
+
+
+    /**
+     * Reads a sequence from a file, parsing the tracks concurrently, see
+     * {@link #getSequence(ByteBuffer, ExecutorService)}.
+     *
+     * @param executor executor for parsing tracks, or null to parse serially
+     */
+    public Sequence getSequence(File file, ExecutorService executor) throws InvalidMidiDataException, IOException {
+        FileInputStream fis = new FileInputStream(file); // throws IOException
         try {
-            seq = getSequence(is);
+            FileChannel channel = fis.getChannel();
+            // the mapping remains valid after the channel has been closed
+            return getSequence(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), executor);
         } finally {
-            is.close();
+            fis.close();
         }
-        return seq;
+    }
+}
+
+//=============================================================================================================
+
+/**
+ * Input stream that reads from a byte buffer; used for chunk headers when
+ * parsing a memory-mapped file.
+ */
+class ByteBufferInputStream extends InputStream {
+    final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+    }
+
+    public int read() {
+        return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+    }
+
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        len = Math.min(len, buffer.remaining());
+        buffer.get(b, off, len);
+        return len;
+    }
+
+    public long skip(long n) {
+        n = Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + (int) n);
+        return n;
+    }
+
+    public int available() {
+        return buffer.remaining();
     }
 }
 
@@ -234,28 +385,37 @@ class SMFParser {
 
     int tracks;                       // number of tracks
     DataInputStream stream;   // the stream to read from
+    ByteBufferInputStream mappedInput = null;  // underlying buffer when parsing without copying
 
     private int trackLength = 0;  // remaining length in track
-    private byte[] trackData = null;
+    private ByteBuffer trackData = null;  // copy of the track chunk, or a slice of the buffer
     private int pos = 0;
+    private final ArrayList<MidiEvent> events = new ArrayList<MidiEvent>();  // reused for all tracks
 
     public SMFParser() {
     }
 
     private int readUnsigned() throws IOException {
-        return trackData[pos++] & 0xFF;
+        return trackData.get(pos++) & 0xFF;
     }
 
     private void read(byte[] data) throws IOException {
-        System.arraycopy(trackData, pos, data, 0, data.length);
+        MidiUtils.getBytes(trackData, pos, data, 0, data.length);
         pos += data.length;
     }
 
+    private void skip(int length) throws IOException {
+        if (length < 0 || length > trackLength - pos) {
+            throw new EOFException("invalid MIDI file");
+        }
+        pos += length;
+    }
+
     private long readVarInt() throws IOException {
         long value = 0; // the variable-lengh int value
         int currentByte = 0;
         do {
-            currentByte = trackData[pos++] & 0xFF;
+            currentByte = trackData.get(pos++) & 0xFF;
             value = (value << 7) + (currentByte & 0x7F);
         } while ((currentByte & 0x80) != 0);
         return value;
@@ -285,23 +445,51 @@ class SMFParser {
                 return false;
             }
         }
+        if (mappedInput != null) {
+            // slice the track out of the buffer instead of copying it
+            ByteBuffer buffer = mappedInput.buffer;
+            if (trackLength > buffer.remaining()) {
+                return false;
+            }
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(slice.position() + trackLength);
+            trackData = slice.slice();
+            buffer.position(buffer.position() + trackLength);
+            pos = 0;
+            return true;
+        }
         // now read track in a byte array
-        trackData = new byte[trackLength];
+        byte[] data = new byte[trackLength];
         try {
             // $$fb 2003-08-20: fix for 4910986: MIDI file parser breaks up on http connection
-            stream.readFully(trackData);
+            stream.readFully(data);
         } catch (EOFException eof) {
             return false;
         }
+        trackData = ByteBuffer.wrap(data);
         pos = 0;
         return true;
     }
 
+    /**
+     * Returns a parser for the current track, so that tracks can be parsed
+     * concurrently; each track has its own running status anyway.
+     */
+    SMFParser trackParser() {
+        SMFParser parser = new SMFParser();
+        parser.mappedInput = mappedInput;
+        parser.trackData = trackData;
+        parser.trackLength = trackLength;
+        return parser;
+    }
+
     private boolean trackFinished() {
         return pos >= trackLength;
     }
 
     void readTrack(Track track) throws IOException, InvalidMidiDataException {
+        // events arrive in tick order, so collect them and append them in bulk
+        events.clear();
         try {
             // reset current tick to 0
             long tick = 0;
@@ -360,6 +548,11 @@ class SMFParser {
                     case 0xF7:
                         // sys ex
                         int sysexLength = (int) readVarInt();
+                        if (mappedInput != null) {
+                            message = new MappedSysexMessage(status, trackData, pos, sysexLength);
+                            skip(sysexLength);
+                            break;
+                        }
                         byte[] sysexData = new byte[sysexLength];
                         read(sysexData);
 
@@ -372,6 +565,15 @@ class SMFParser {
                         // meta
                         int metaType = readUnsigned();
                         int metaLength = (int) readVarInt();
+                        if (mappedInput != null) {
+                            if (metaType >= 128) {
+                                throw new InvalidMidiDataException("Invalid meta event with type " + metaType);
+                            }
+                            message = new MappedMetaMessage(metaType, trackData, pos, metaLength);
+                            skip(metaLength);
+                            endOfTrackFound = (metaType == 0x2F);
+                            break;
+                        }
 
                         byte[] metaData = new byte[metaLength];
                         read(metaData);
@@ -391,9 +593,14 @@ class SMFParser {
                 default:
                     throw new InvalidMidiDataException("Invalid status byte: " + status);
                 } // switch
-                track.add(new MidiEvent(message, tick));
+                events.add(new MidiEvent(message, tick));
             } // while
-        } catch (ArrayIndexOutOfBoundsException e) {
+            track.appendSorted(events);
+        } catch (IndexOutOfBoundsException e) {
+            if (DEBUG) e.printStackTrace();
+            // fix for 4834374
+            throw new EOFException("invalid MIDI file");
+        } catch (BufferUnderflowException e) {
             if (DEBUG) e.printStackTrace();
             // fix for 4834374
             throw new EOFException("invalid MIDI file");
@@ -25,6 +25,8 @@
 
 package com.noisepages.nettoyeur.midi.file;
 
+import java.nio.ByteBuffer;
+
 /**
  * A <code>SysexMessage</code> object represents a MIDI system exclusive message.
  * <p>
@@ -177,6 +179,17 @@ public class SysexMessage extends MidiMessage {
     }
 
 
+    /**
+     * Obtains the data of the system exclusive message without copying it.
+     *
+     * @return a read-only buffer holding the data of the message, from
+     * position zero to its limit
+     */
+    public ByteBuffer getDataBuffer() {
+        return ByteBuffer.wrap(data, 1, length - 1).slice().asReadOnlyBuffer();
+    }
+
+
     /**
      * Obtains a copy of the data for the system exclusive message.
      * The returned array of bytes does not include the status byte.
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.file;
+
+/**
+ * Immutable tempo map of a PPQ sequence. For each tempo segment, the map holds its first tick, its
+ * tempo, and the cumulative time in microseconds at which it starts, so that conversions in either
+ * direction take one binary search, regardless of the order of queries.
+ *
+ * Cumulative times are computed segment by segment with {@link MidiUtils#ticks2microsec}, so that
+ * results are identical to walking the tempo changes one by one.
+ *
+ * @author Peter Brinkmann
+ */
+public final class TempoMap {
+
+    private final long[] ticks;
+    private final int[] tempos;  // in MPQ
+    private final long[] micros;
+    private final int resolution;
+
+    /**
+     * Creates a tempo map.
+     *
+     * @param ticks first tick of each segment, in ascending order, starting at zero
+     * @param tempos tempo of each segment in MPQ
+     * @param resolution ticks per quarter note
+     */
+    public TempoMap(long[] ticks, int[] tempos, int resolution) {
+        if (ticks.length == 0 || ticks.length != tempos.length) {
+            throw new IllegalArgumentException("Bad tempo map");
+        }
+        this.ticks = ticks.clone();
+        this.tempos = tempos.clone();
+        this.resolution = resolution;
+        micros = new long[ticks.length];
+        for (int i = 1; i < ticks.length; i++) {
+            micros[i] = micros[i - 1]
+                + MidiUtils.ticks2microsec(ticks[i] - ticks[i - 1], tempos[i - 1], resolution);
+        }
+    }
+
+    /**
+     * @return ticks per quarter note
+     */
+    public int getResolution() {
+        return resolution;
+    }
+
+    /**
+     * @return number of tempo segments
+     */
+    public int size() {
+        return ticks.length;
+    }
+
+    /**
+     * Converts a tick to microseconds.
+     */
+    public long tickToMicrosecond(long tick) {
+        int i = segmentAt(ticks, tick);
+        return micros[i] + MidiUtils.ticks2microsec(tick - ticks[i], tempos[i], resolution);
+    }
+
+    /**
+     * Converts microseconds to a tick, rounding down.
+     */
+    public long microsecondToTick(long micro) {
+        if (micro <= 0) {
+            return 0;
+        }
+        int i = segmentAt(micros, micro);
+        return ticks[i] + MidiUtils.microsec2ticks(micro - micros[i], tempos[i], resolution);
+    }
+
+    /**
+     * @return tempo in MPQ at the given tick
+     */
+    public int getTempoMPQAt(long tick) {
+        return tempos[segmentAt(ticks, tick)];
+    }
+
+    /**
+     * @return tempo in MPQ at the given time in microseconds
+     */
+    public int getTempoMPQAtMicrosecond(long micro) {
+        return (micro <= 0) ? tempos[0] : tempos[segmentAt(micros, micro)];
+    }
+
+    /**
+     * @return index of the last segment that starts at or before the given value; zero if there is
+     *         none
+     */
+    private static int segmentAt(long[] starts, long value) {
+        int low = 0;
+        int high = starts.length;  // starts[high] > value, with a virtual sentinel at the end
+        while (high - low > 1) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] <= value) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -27,6 +27,7 @@ package com.noisepages.nettoyeur.midi.file;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 
 /**
  * A MIDI track is an independent stream of MIDI events (time-stamped MIDI
@@ -66,8 +67,9 @@ public class Track {
     // the list containing the events
     private ArrayList<MidiEvent> eventsList = new ArrayList<MidiEvent>();
 
-    // use a hashset to detect duplicate events in add(MidiEvent)
-    private HashSet<MidiEvent> set = new HashSet<MidiEvent>();
+    // use a hashset to detect duplicate events in add(MidiEvent);
+    // built on demand, so that tracks that are only read never pay for it
+    private HashSet<MidiEvent> set = null;
 
     private MidiEvent eotEvent;
 
@@ -81,7 +83,6 @@ public class Track {
         MetaMessage eot = new ImmutableEndOfTrack();
         eotEvent = new MidiEvent(eot, 0);
         eventsList.add(eotEvent);
-        set.add(eotEvent);
     }
 
     /**
@@ -100,6 +101,7 @@ public class Track {
         }
         synchronized(eventsList) {
 
+            HashSet<MidiEvent> set = getSet();
             if (!set.contains(event)) {
                 int eventsCount = eventsList.size();
 
@@ -175,6 +177,55 @@ public class Track {
     }
 
 
+    /**
+     * Bulk append for file parsers.  Appends new events that are in tick order
+     * and not earlier than any event already in the track.  Unlike
+     * {@link #add}, this doesn't check for duplicates or search for the
+     * insertion point; the end-of-track event is fixed up once at the end.
+     *
+     * @param events the events to append, in tick order
+     */
+    void appendSorted(List<MidiEvent> events) {
+        synchronized(eventsList) {
+            // take the end-of-track event off the end of the list
+            int eventsCount = eventsList.size();
+            if (eventsCount > 0 && eventsList.get(eventsCount - 1) == eotEvent) {
+                eventsList.remove(eventsCount - 1);
+            }
+            eventsList.ensureCapacity(eventsList.size() + events.size() + 1);
+            long eotTick = eotEvent.getTick();
+            for (int i = 0; i < events.size(); i++) {
+                MidiEvent event = events.get(i);
+                if (!MidiUtils.isMetaEndOfTrack(event.getMessage())) {
+                    eventsList.add(event);
+                }
+                // as in add, keep the tick of a trailing end-of-track event
+                eotTick = Math.max(eotTick, event.getTick());
+            }
+            eotEvent.setTick(eotTick);
+            eventsList.add(eotEvent);
+            set = null;
+        }
+    }
+
+
+    /**
+     * Returns a read-only copy of this track, for use when the track is
+     * read many times, e.g., during playback.  Its <code>get</code> and
+     * <code>size</code> methods don't take any locks, and its
+     * <code>add</code> and <code>remove</code> methods throw
+     * <code>UnsupportedOperationException</code>.  Later changes to this
+     * track are not reflected in the copy.
+     *
+     * @return a read-only copy of this track
+     */
+    public Track readOnlyCopy() {
+        synchronized(eventsList) {
+            return new ReadOnlyTrack(eventsList.toArray(new MidiEvent[eventsList.size()]));
+        }
+    }
+
+
     /**
      * Removes the specified event from the track.
      * @param event the event to remove
@@ -194,7 +245,7 @@ public class Track {
         // Or: document that the ticks() length will not be reduced
         // by deleting events (unless the EOT event is removed)
         synchronized(eventsList) {
-            if (set.remove(event)) {
+            if (getSet().remove(event)) {
                 int i = eventsList.indexOf(event);
                 if (i >= 0) {
                     eventsList.remove(i);
@@ -256,6 +307,46 @@ public class Track {
         return ret;
     }
 
+    // must be called while holding the lock on eventsList
+    private HashSet<MidiEvent> getSet() {
+        if (set == null) {
+            set = new HashSet<MidiEvent>(eventsList);
+        }
+        return set;
+    }
+
+    private static class ReadOnlyTrack extends Track {
+        private final MidiEvent[] events;
+
+        private ReadOnlyTrack(MidiEvent[] events) {
+            this.events = events;
+        }
+
+        public boolean add(MidiEvent event) {
+            throw new UnsupportedOperationException("read-only track");
+        }
+
+        public boolean remove(MidiEvent event) {
+            throw new UnsupportedOperationException("read-only track");
+        }
+
+        public MidiEvent get(int index) throws ArrayIndexOutOfBoundsException {
+            return events[index];
+        }
+
+        public int size() {
+            return events.length;
+        }
+
+        public long ticks() {
+            return (events.length > 0) ? events[events.length - 1].getTick() : 0;
+        }
+
+        public Track readOnlyCopy() {
+            return this;
+        }
+    }
+
     private static class ImmutableEndOfTrack extends MetaMessage {
         private ImmutableEndOfTrack() {
             super(new byte[3]);
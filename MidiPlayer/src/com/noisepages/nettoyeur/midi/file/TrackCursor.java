@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.file;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cursor over the events of a single track chunk of a Standard MIDI File. The cursor parses events
+ * one at a time, straight from the buffer, without creating any objects. It is a lightweight
+ * alternative to reading a {@link Sequence}, which allocates a message and an event object for
+ * every event; the same cursor object is reused for all events of the track.
+ *
+ * @author Peter Brinkmann
+ */
+public class TrackCursor {
+
+    private final ByteBuffer buffer;
+    private final int start;
+    private final int end;
+    private int pos;
+    private long tick;
+    private int runningStatus;
+    private int status;
+    private int metaType;
+    private int dataStart;
+    private int dataLength;
+    private boolean finished;
+
+    /**
+     * Creates a cursor for the track data in the given range of the buffer, i.e., the content of an
+     * MTrk chunk without its header. The buffer is accessed with absolute gets only, so that several
+     * cursors can share it.
+     *
+     * @param buffer buffer holding the track data
+     * @param start index of the first byte of the track data
+     * @param length length of the track data
+     */
+    public TrackCursor(ByteBuffer buffer, int start, int length) {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = start + length;
+        rewind();
+    }
+
+    /**
+     * Moves the cursor back to the beginning of the track. The cursor will be positioned before the
+     * first event.
+     */
+    public void rewind() {
+        pos = start;
+        tick = 0;
+        runningStatus = 0;
+        status = 0;
+        finished = false;
+    }
+
+    /**
+     * Advances to the next event.
+     *
+     * @return false if the end of the track has been reached
+     * @throws InvalidMidiDataException if the track data is corrupt
+     */
+    public boolean next() throws InvalidMidiDataException {
+        if (finished || pos >= end) {
+            finished = true;
+            return false;
+        }
+        tick += readVarInt();
+        int byteValue = readUnsigned();
+        if (byteValue >= 0x80) {
+            status = byteValue;
+            dataStart = pos;
+        } else {
+            status = runningStatus;
+            dataStart = pos - 1;
+        }
+        runningStatus = status;
+        switch (status & 0xF0) {
+        case 0x80:
+        case 0x90:
+        case 0xA0:
+        case 0xB0:
+        case 0xE0:
+            dataLength = 2;
+            break;
+        case 0xC0:
+        case 0xD0:
+            dataLength = 1;
+            break;
+        case 0xF0:
+            switch (status) {
+            case 0xF0:
+            case 0xF7:
+                pos = dataStart;
+                dataLength = readVarInt();
+                dataStart = pos;
+                break;
+            case 0xFF:
+                pos = dataStart;
+                metaType = readUnsigned();
+                dataLength = readVarInt();
+                dataStart = pos;
+                if (metaType == MidiUtils.META_END_OF_TRACK_TYPE) {
+                    finished = true;
+                }
+                break;
+            default:
+                throw new InvalidMidiDataException("Invalid status byte: " + status);
+            }
+            break;
+        default:
+            throw new InvalidMidiDataException("Invalid status byte: " + status);
+        }
+        pos = dataStart + dataLength;
+        if (dataLength < 0 || pos > end) {
+            throw new InvalidMidiDataException("Truncated track");
+        }
+        return true;
+    }
+
+    /**
+     * @return tick of the current event
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * @return status byte of the current event; 0xFF for meta events
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return true if the current event is a meta event
+     */
+    public boolean isMeta() {
+        return status == MetaMessage.META;
+    }
+
+    /**
+     * @return type of the current meta event
+     */
+    public int getMetaType() {
+        return metaType;
+    }
+
+    /**
+     * @return channel of the current event if it is a channel message, ranging from 0 to 15
+     */
+    public int getChannel() {
+        return status & 0x0F;
+    }
+
+    /**
+     * @return first data byte of the current event if it is a channel message, or -1
+     */
+    public int getData1() {
+        return (status < 0xF0) ? getData(0) : -1;
+    }
+
+    /**
+     * @return second data byte of the current event if it is a channel message with two data bytes,
+     *         or -1
+     */
+    public int getData2() {
+        return (status < 0xF0 && dataLength > 1) ? getData(1) : -1;
+    }
+
+    /**
+     * @return the data bytes of the current event, e.g., the payload of a sysex or meta event, as a
+     *         read-only slice of the underlying buffer
+     */
+    public ByteBuffer getPayload() {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(dataStart + dataLength);
+        slice.position(dataStart);
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return number of data bytes of the current event, i.e., without status byte, sysex length, or
+     *         meta type
+     */
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * @param index of the data byte, ranging from zero to getDataLength() - 1
+     * @return the data byte, as an unsigned value
+     */
+    public int getData(int index) {
+        return buffer.get(dataStart + index) & 0xFF;
+    }
+
+    /**
+     * @return length of the current event as it appears on the wire, i.e., status byte plus data
+     */
+    public int getMessageLength() {
+        return dataLength + 1;
+    }
+
+    /**
+     * Copies the current event as it appears on the wire, i.e., status byte plus data. For sysex
+     * events, this yields the same bytes as SysexMessage.getMessage().
+     *
+     * @param dst array to copy the message to
+     * @param offset index in dst at which to copy the status byte
+     */
+    public void copyMessage(byte[] dst, int offset) {
+        dst[offset++] = (byte) status;
+        if (dataLength > 2) {
+            MidiUtils.getBytes(buffer, dataStart, dst, offset, dataLength);
+        } else {
+            for (int i = 0; i < dataLength; i++) {
+                dst[offset + i] = buffer.get(dataStart + i);
+            }
+        }
+    }
+
+    /**
+     * @return tempo in microseconds per quarter note if the current event is a tempo change, or -1
+     */
+    public int getTempoMPQ() {
+        if (!isMeta() || metaType != MidiUtils.META_TEMPO_TYPE || dataLength != 3) {
+            return -1;
+        }
+        return (getData(0) << 16) | (getData(1) << 8) | getData(2);
+    }
+
+    private int readUnsigned() throws InvalidMidiDataException {
+        if (pos >= end) {
+            throw new InvalidMidiDataException("Truncated track");
+        }
+        return buffer.get(pos++) & 0xFF;
+    }
+
+    private int readVarInt() throws InvalidMidiDataException {
+        int value = 0;
+        int currentByte;
+        int count = 0;
+        do {
+            if (++count > 4) {
+                throw new InvalidMidiDataException("Invalid variable-length quantity");
+            }
+            currentByte = readUnsigned();
+            value = (value << 7) + (currentByte & 0x7F);
+        } while ((currentByte & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.player;
+
+import java.util.Arrays;
+
+import com.noisepages.nettoyeur.midi.FromWireConverter;
+import com.noisepages.nettoyeur.midi.MidiReceiver;
+
+/**
+ * Tracks the controller, program, and pitch bend state of all channels, so that a sequencer can
+ * restore the synth state after a seek ("chasing"). The state is encoded as a compact sequence of
+ * MIDI messages that recreate it, which is also the snapshot format.
+ * 
+ * @author Peter Brinkmann
+ */
+final class ChaseState extends MidiReceiver.DummyReceiver {
+
+  private static final int RESET_ALL_CONTROLLERS = 121;
+  private static final int FIRST_MODE_MESSAGE = 120;
+
+  // Parameter number controllers go first, so that data entry applies to the right parameter.
+  private static final int[] controllerOrder = new int[FIRST_MODE_MESSAGE];
+  static {
+    int[] first = {99, 98, 101, 100};
+    int n = 0;
+    for (int c : first) {
+      controllerOrder[n++] = c;
+    }
+    for (int c = 0; c < FIRST_MODE_MESSAGE; c++) {
+      if (c < 98 || c > 101) {
+        controllerOrder[n++] = c;
+      }
+    }
+  }
+
+  private final byte[] controllers = new byte[16 * FIRST_MODE_MESSAGE]; // -1 if unknown
+  private final byte[] programs = new byte[16]; // -1 if unknown
+  private final int[] pitchBends = new int[16]; // Raw 14-bit value, -1 if unknown
+  private FromWireConverter converter;
+
+  ChaseState() {
+    reset();
+  }
+
+  /**
+   * Forgets all state, i.e., returns to the state right after reset all controllers.
+   */
+  void reset() {
+    Arrays.fill(controllers, (byte) -1);
+    Arrays.fill(programs, (byte) -1);
+    Arrays.fill(pitchBends, -1);
+    converter = new FromWireConverter(this);
+  }
+
+  /**
+   * Updates the state with a slice of a MIDI byte stream.
+   */
+  void apply(byte[] buffer, int offset, int length) {
+    converter.onBytesReceived(length, buffer, offset);
+  }
+
+  /**
+   * Replaces the current state with a snapshot.
+   * 
+   * @param snapshot snapshot returned by {@link #encode()}
+   */
+  void restore(byte[] snapshot) {
+    reset();
+    apply(snapshot, 0, snapshot.length);
+  }
+
+  /**
+   * @return MIDI messages that recreate the current state, starting from reset all controllers
+   */
+  byte[] encode() {
+    int size = 0;
+    for (int ch = 0; ch < 16; ch++) {
+      for (int c = 0; c < FIRST_MODE_MESSAGE; c++) {
+        if (controllers[ch * FIRST_MODE_MESSAGE + c] >= 0) size += 3;
+      }
+      if (programs[ch] >= 0) size += 2;
+      if (pitchBends[ch] >= 0) size += 3;
+    }
+    byte[] messages = new byte[size];
+    int n = 0;
+    for (int ch = 0; ch < 16; ch++) {
+      for (int c : controllerOrder) {
+        byte value = controllers[ch * FIRST_MODE_MESSAGE + c];
+        if (value >= 0) {
+          messages[n++] = (byte) (0xb0 | ch);
+          messages[n++] = (byte) c;
+          messages[n++] = value;
+        }
+      }
+      // Program changes follow bank select.
+      if (programs[ch] >= 0) {
+        messages[n++] = (byte) (0xc0 | ch);
+        messages[n++] = programs[ch];
+      }
+      if (pitchBends[ch] >= 0) {
+        messages[n++] = (byte) (0xe0 | ch);
+        messages[n++] = (byte) (pitchBends[ch] & 0x7f);
+        messages[n++] = (byte) (pitchBends[ch] >> 7);
+      }
+    }
+    return messages;
+  }
+
+  @Override
+  public void onControlChange(int channel, int controller, int value) {
+    if (controller < FIRST_MODE_MESSAGE) {
+      controllers[channel * FIRST_MODE_MESSAGE + controller] = (byte) value;
+    } else if (controller == RESET_ALL_CONTROLLERS) {
+      Arrays.fill(controllers, channel * FIRST_MODE_MESSAGE, (channel + 1) * FIRST_MODE_MESSAGE,
+          (byte) -1);
+      pitchBends[channel] = -1;
+    }
+  }
+
+  @Override
+  public void onProgramChange(int channel, int program) {
+    programs[channel] = (byte) program;
+  }
+
+  @Override
+  public void onPitchBend(int channel, int value) {
+    pitchBends[channel] = value + 8192;
+  }
+}
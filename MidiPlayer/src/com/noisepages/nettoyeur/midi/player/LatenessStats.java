@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.player;
+
+/**
+ * Lateness statistics of a sequencer, i.e., how long after their scheduled times MIDI events were
+ * actually sent. Lateness is measured with {@link System#nanoTime()}.
+ * 
+ * @author Peter Brinkmann
+ */
+public class LatenessStats {
+
+  private long count = 0;
+  private long total = 0;
+  private long max = 0;
+  private long last = 0;
+
+  synchronized void record(long latenessNanos) {
+    count++;
+    total += latenessNanos;
+    max = Math.max(max, latenessNanos);
+    last = latenessNanos;
+  }
+
+  /**
+   * Clears all statistics.
+   */
+  public synchronized void reset() {
+    count = 0;
+    total = 0;
+    max = 0;
+    last = 0;
+  }
+
+  /**
+   * @return number of event groups that have been sent since the last reset
+   */
+  public synchronized long getCount() {
+    return count;
+  }
+
+  /**
+   * @return mean lateness in nanoseconds, or zero if no events have been sent
+   */
+  public synchronized long getMeanNanos() {
+    return count > 0 ? total / count : 0;
+  }
+
+  /**
+   * @return maximum lateness in nanoseconds
+   */
+  public synchronized long getMaxNanos() {
+    return max;
+  }
+
+  /**
+   * @return lateness of the most recent event group in nanoseconds
+   */
+  public synchronized long getLastNanos() {
+    return last;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "LatenessStats[count=" + count + ", mean=" + getMeanNanos() + "ns, max=" + max + "ns]";
+  }
+}
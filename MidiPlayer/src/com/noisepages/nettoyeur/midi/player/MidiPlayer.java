@@ -112,7 +112,11 @@ public class MidiPlayer extends Activity implements BluetoothSppObserver, OnClic
           MidiSequenceObserver observer = new MidiSequenceObserver() {
             @Override
             public void onPlaybackFinished(MidiSequence sequence) {
-              toast("Playback finished");
+              if (sequence.getError() != null) {
+                toast("Playback stopped: corrupt MIDI data");
+              } else if (!midiService.isPlaying()) { // Otherwise, the next song has started.
+                toast("Playback finished");
+              }
               updateWidgets();
             }
           };
@@ -16,7 +16,17 @@
 
 package com.noisepages.nettoyeur.midi.player;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import android.app.Notification;
 import android.app.PendingIntent;
@@ -25,6 +35,8 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 
 import com.noisepages.nettoyeur.midi.FromWireConverter;
 import com.noisepages.nettoyeur.midi.MidiDevice;
@@ -39,12 +51,52 @@ public class MidiPlayerService extends Service {
 
   private static final CharSequence TAG = "MidiPlayerService";
   private static final int ID = 1;
+  private static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
 
   private volatile ConnectionType connectionType = ConnectionType.NONE;
   private volatile MidiDevice midiDevice = null;
   private volatile MidiSequence midiSequence = null;
   private volatile FromWireConverter midiConverter = null;
   private volatile Uri uri = null;
+  private volatile boolean playRequested = false; // False once the user has paused or rewound.
+  private SequenceCache sequenceCache = null;
+  private ExecutorService preloader = null;
+  private SongQueue<Uri> queue = null;
+  private volatile MidiSequenceObserver observer = null;
+
+  private final MidiSequenceObserver sequenceObserver = new MidiSequenceObserver() {
+    @Override
+    public void onPlaybackFinished(MidiSequence sequence) {
+      onSequenceFinished(sequence);
+    }
+  };
+
+  private final SongQueue.Loader<Uri> queueLoader = new SongQueue.Loader<Uri>() {
+    @Override
+    public MidiSequence load(Uri uri) throws Exception {
+      return openMidiSequence(uri, false);
+    }
+  };
+
+  private final SongQueue.Listener<Uri> queueListener = new SongQueue.Listener<Uri>() {
+    @Override
+    public void onSongChanged(Uri uri, MidiSequence sequence, boolean start) {
+      midiSequence = sequence;
+      if (uri != null) {
+        MidiPlayerService.this.uri = uri;
+      }
+      FromWireConverter converter = midiConverter;
+      if (start && playRequested && converter != null) {
+        sequence.start(converter);
+      }
+    }
+
+    @Override
+    public void onQueueFinished() {
+      playRequested = false;
+      stopForeground(true);
+    }
+  };
 
   private final Binder binder = new MidiPlayerServiceBinder();
 
@@ -54,6 +106,31 @@ public class MidiPlayerService extends Service {
     }
   }
 
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    sequenceCache = new SequenceCache(new File(getCacheDir(), "sequences"), DEFAULT_CACHE_SIZE);
+    preloader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        return new Thread("MidiPreloader") {
+          @Override
+          public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+          }
+        };
+      }
+    });
+    queue = new SongQueue<Uri>(queueLoader, queueListener, preloader);
+  }
+
+  @Override
+  public void onDestroy() {
+    preloader.shutdownNow();
+    super.onDestroy();
+  }
+
   @Override
   public IBinder onBind(Intent intent) {
     return binder;
@@ -86,27 +163,142 @@ public class MidiPlayerService extends Service {
     return connectionType;
   }
 
-  public boolean loadMidiSequence(Uri uri, final MidiSequenceObserver observer) {
+  public boolean loadMidiSequence(Uri uri, MidiSequenceObserver observer) {
+    return loadMidiSequence(uri, observer, false);
+  }
+
+  /**
+   * @return the cache of compiled songs, e.g., for adjusting its size budget
+   */
+  public SequenceCache getSequenceCache() {
+    return sequenceCache;
+  }
+
+  /**
+   * Loads a MIDI file. Songs that have been loaded before are played from the cache of compiled
+   * songs, without parsing the file again; songs that are loaded completely are added to the cache.
+   * The observer is also notified when songs from the queue finish.
+   * 
+   * @param streaming if true and the song is not in the cache, the file is memory-mapped and events
+   *        are read as playback progresses; recommended for very long files
+   */
+  public boolean loadMidiSequence(Uri uri, MidiSequenceObserver observer, boolean streaming) {
     if (isInitialized()) {
       pause();
     }
+    this.observer = observer;
+    MidiSequence sequence;
     try {
-      InputStream is = getContentResolver().openInputStream(uri);
-      midiSequence = new MidiSequence(is, new MidiSequenceObserver() {
-        @Override
-        public void onPlaybackFinished(MidiSequence sequence) {
-          observer.onPlaybackFinished(sequence);
-          stopForeground(true);
-        }
-      });
-      this.uri = uri;
+      sequence = openMidiSequence(uri, streaming);
     } catch (Exception e) {
       e.printStackTrace();
       return false;
     }
+    queue.setCurrent(uri, sequence); // Updates the current song through the queue listener.
     return true;
   }
 
+  private MidiSequence openMidiSequence(Uri uri, boolean streaming) throws Exception {
+    String key = getCacheKey(uri);
+    MidiSequence sequence = (key != null) ? sequenceCache.get(key, sequenceObserver) : null;
+    if (sequence != null) {
+      return sequence;
+    }
+    if (streaming) {
+      ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "r");
+      FileInputStream fis = null;
+      try {
+        fis = new FileInputStream(pfd.getFileDescriptor());
+        FileChannel channel = fis.getChannel();
+        // The mapping remains valid after the descriptor is closed.
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        return new MidiSequence(buffer, sequenceObserver);
+      } finally {
+        if (fis != null) {
+          fis.close();
+        }
+        pfd.close();
+      }
+    }
+    byte[] content;
+    InputStream is = getContentResolver().openInputStream(uri);
+    try {
+      content = MidiSequence.readFully(is);
+    } finally {
+      is.close();
+    }
+    if (key == null) {
+      // Without a modification time, the content itself identifies the song.
+      key = SequenceCache.contentKey(content);
+      sequence = sequenceCache.get(key, sequenceObserver);
+      if (sequence != null) {
+        return sequence;
+      }
+    }
+    sequence = new MidiSequence(new ByteArrayInputStream(content), sequenceObserver);
+    try {
+      sequenceCache.put(key, sequence);
+    } catch (IOException e) {
+      e.printStackTrace(); // The song still plays; it just won't be cached.
+    }
+    return sequence;
+  }
+
+  /**
+   * Appends a MIDI file to the queue of songs to play after the current one. The first few songs
+   * in the queue are loaded in the background, so that each song starts exactly at the end of the
+   * previous one. If a song isn't ready in time, it starts as soon as it has been loaded. Songs
+   * that fail to load are skipped.
+   */
+  public void enqueue(Uri uri) {
+    queue.enqueue(uri);
+  }
+
+  /**
+   * @return the songs in the queue, in order
+   */
+  public List<Uri> getQueue() {
+    return queue.getKeys();
+  }
+
+  /**
+   * Removes all songs from the queue; the current song keeps playing.
+   */
+  public void clearQueue() {
+    queue.clear();
+  }
+
+  /**
+   * Sets the number of songs in the queue to load ahead of time.
+   * 
+   * @param preloadCount number of songs to preload, at least 1 for gapless playback
+   */
+  public void setPreloadCount(int preloadCount) {
+    queue.setPreloadCount(preloadCount);
+  }
+
+  public int getPreloadCount() {
+    return queue.getPreloadCount();
+  }
+
+  // Called on the scheduler thread of the sequence that finished.
+  private void onSequenceFinished(MidiSequence sequence) {
+    queue.onSequenceFinished(sequence);
+    MidiSequenceObserver observer = this.observer;
+    if (observer != null) {
+      observer.onPlaybackFinished(sequence);
+    }
+  }
+
+  // Returns a key that changes whenever the file changes, or null if the file isn't local.
+  private static String getCacheKey(Uri uri) {
+    if (!"file".equals(uri.getScheme())) {
+      return null;
+    }
+    File file = new File(uri.getPath());
+    return uri + ":" + file.length() + ":" + file.lastModified();
+  }
+
   public long getDuration() {
     return isInitialized() ? midiSequence.duration : 0;
   }
@@ -143,6 +335,7 @@ public class MidiPlayerService extends Service {
     notification.setLatestEventInfo(this, TAG, "Return to MidiPlayer", pi);
     notification.flags |= Notification.FLAG_ONGOING_EVENT;
     startForeground(ID, notification);
+    playRequested = true;
     midiSequence.start(midiConverter);
   }
 
@@ -150,6 +343,7 @@ public class MidiPlayerService extends Service {
     if (!isInitialized()) {
       throw new IllegalStateException("MidiPlayerService not initialized");
     }
+    playRequested = false;
     midiSequence.pause();
     stopForeground(true);
   }
@@ -158,6 +352,7 @@ public class MidiPlayerService extends Service {
     if (!isInitialized()) {
       throw new IllegalStateException("MidiPlayerService not initialized");
     }
+    playRequested = false;
     midiSequence.rewind();
     stopForeground(true);
   }
@@ -17,135 +17,744 @@
 package com.noisepages.nettoyeur.midi.player;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.locks.LockSupport;
 
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Process;
 import android.os.SystemClock;
+import android.util.Log;
 
 import com.noisepages.nettoyeur.common.RawByteReceiver;
+import com.noisepages.nettoyeur.midi.FromWireConverter;
+import com.noisepages.nettoyeur.midi.PackedMidiReceiver;
 import com.noisepages.nettoyeur.midi.file.InvalidMidiDataException;
-import com.noisepages.nettoyeur.midi.file.MetaMessage;
-import com.noisepages.nettoyeur.midi.file.MidiEvent;
-import com.noisepages.nettoyeur.midi.file.MidiMessage;
-import com.noisepages.nettoyeur.midi.file.MidiUtils;
-import com.noisepages.nettoyeur.midi.file.MidiUtils.TempoCache;
-import com.noisepages.nettoyeur.midi.file.Sequence;
-import com.noisepages.nettoyeur.midi.file.StandardMidiFileReader;
-import com.noisepages.nettoyeur.midi.file.Track;
-import com.noisepages.nettoyeur.midi.file.spi.MidiFileReader;
+import com.noisepages.nettoyeur.midi.file.MidiFileCursor;
+import com.noisepages.nettoyeur.midi.file.TrackCursor;
 
 
 public class MidiSequence {
 
-  private static class CompoundMidiEvent implements Comparable<CompoundMidiEvent> {
-    public final long timeInMillis;
-    public final byte[] midiBytes;
+  /**
+   * Source of MIDI events, grouped by time in microseconds.
+   */
+  private interface EventSource {
+
+    /**
+     * Moves the source back to the beginning of the song, before the first group.
+     */
+    void rewind();
+
+    /**
+     * Moves the source to the given time, so that the next group will be the first one at or after
+     * that time.
+     * 
+     * @param time time in microseconds
+     * @return MIDI messages that restore the controller, program, and pitch bend state at the given
+     *         time
+     */
+    byte[] seek(long time);
+
+    /**
+     * Advances to the next group.
+     * 
+     * @return false if there are no more groups
+     */
+    boolean advance();
+
+    /**
+     * @return time of the current group in microseconds
+     */
+    long getTime();
+
+    /**
+     * @return buffer holding the MIDI bytes of the current group, starting at index zero
+     */
+    byte[] getBuffer();
+
+    /**
+     * @return number of MIDI bytes in the current group
+     */
+    int getLength();
+
+    /**
+     * @return time of the end of the song in microseconds, i.e., of its last event including meta
+     *         events such as end of track; only valid once advance has returned false
+     */
+    long getEndTime();
+  }
+
+  /**
+   * Event source for a song that has been loaded completely. The MIDI bytes of group i are
+   * payload[offsets[i]..offsets[i + 1]), to be sent at times[i]. The buffers either wrap arrays or
+   * are views of a memory-mapped file in the compiled format (see {@link #writeCompiled}).
+   */
+  private static class CompiledEventSource implements EventSource {
+    private static final int SNAPSHOT_INTERVAL = 256; // Groups between chase snapshots.
+
+    private final LongBuffer times;
+    private final IntBuffer offsets;
+    private final ByteBuffer payload;
+    private final int nGroups;
+    private final long endTime;
+    private final byte[] groupBuffer; // Large enough for the largest group.
+    private final ChaseState chaseState = new ChaseState();
+    private byte[][] snapshots = null; // Chase state before every SNAPSHOT_INTERVAL-th group.
+    private int group = -1;
+
+    private CompiledEventSource(LongBuffer times, IntBuffer offsets, ByteBuffer payload,
+        long endTime) {
+      this.times = times;
+      this.offsets = offsets;
+      this.payload = payload;
+      this.endTime = endTime;
+      nGroups = times.limit();
+      int maxGroupSize = 0;
+      for (int i = 0; i < nGroups; i++) {
+        maxGroupSize = Math.max(maxGroupSize, offsets.get(i + 1) - offsets.get(i));
+      }
+      groupBuffer = new byte[maxGroupSize];
+    }
+
+    @Override
+    public void rewind() {
+      group = -1;
+    }
+
+    @Override
+    public byte[] seek(long time) {
+      int target = search(time);
+      if (snapshots == null) {
+        takeSnapshots(); // Only pay for snapshots if seek is actually used.
+      }
+      chaseState.restore(snapshots[target / SNAPSHOT_INTERVAL]);
+      for (group = target / SNAPSHOT_INTERVAL * SNAPSHOT_INTERVAL - 1; group + 1 < target;) {
+        advance();
+        chaseState.apply(groupBuffer, 0, getLength());
+      }
+      group = target - 1;
+      return chaseState.encode();
+    }
+
+    // Returns the index of the first group at or after the given time.
+    private int search(long time) {
+      int low = 0;
+      int high = nGroups;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (times.get(mid) < time) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    private void takeSnapshots() {
+      snapshots = new byte[nGroups / SNAPSHOT_INTERVAL + 1][];
+      chaseState.reset();
+      snapshots[0] = chaseState.encode();
+      for (group = -1; advance();) {
+        chaseState.apply(groupBuffer, 0, getLength());
+        if ((group + 1) % SNAPSHOT_INTERVAL == 0) {
+          snapshots[(group + 1) / SNAPSHOT_INTERVAL] = chaseState.encode();
+        }
+      }
+    }
+
+    @Override
+    public boolean advance() {
+      if (group + 1 >= nGroups) {
+        return false;
+      }
+      group++;
+      payload.position(offsets.get(group));
+      payload.get(groupBuffer, 0, getLength());
+      return true;
+    }
+
+    @Override
+    public long getTime() {
+      return times.get(group);
+    }
+
+    @Override
+    public byte[] getBuffer() {
+      return groupBuffer;
+    }
+
+    @Override
+    public int getLength() {
+      return offsets.get(group + 1) - offsets.get(group);
+    }
+
+    @Override
+    public long getEndTime() {
+      return endTime;
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+      for (int i = 0; i < nGroups; i++) {
+        out.writeLong(times.get(i));
+      }
+      for (int i = 0; i <= nGroups; i++) {
+        out.writeInt(offsets.get(i));
+      }
+      ByteBuffer bytes = payload.duplicate(); // Leaves the playback position alone.
+      bytes.position(0);
+      byte[] chunk = new byte[8192];
+      while (bytes.hasRemaining()) {
+        int n = Math.min(chunk.length, bytes.remaining());
+        bytes.get(chunk, 0, n);
+        out.write(chunk, 0, n);
+      }
+    }
+  }
+
+  /**
+   * Event source that reads events from the file as playback progresses. Corrupt track data ends
+   * the song early, after the events that were read before the error. Seeking takes linear time
+   * since there is no index.
+   */
+  private static class StreamingEventSource implements EventSource {
+    private final MidiFileCursor cursor;
+    private volatile InvalidMidiDataException error = null;
+    private final ChaseState chaseState = new ChaseState();
+    private boolean hasPendingEvent = false; // True if the cursor holds an event of the next group.
+    private boolean repeatGroup = false; // True if the next advance returns the current group.
+    private byte[] groupBuffer = new byte[256];
+    private int length = 0;
+    private long time = 0;
+    private long endTime = 0;
+
+    private StreamingEventSource(MidiFileCursor cursor) {
+      this.cursor = cursor;
+    }
+
+    @Override
+    public void rewind() {
+      cursor.rewind();
+      hasPendingEvent = false;
+      repeatGroup = false;
+      error = null;
+    }
+
+    @Override
+    public byte[] seek(long time) {
+      rewind();
+      chaseState.reset();
+      while (advance()) {
+        if (this.time >= time) {
+          repeatGroup = true;
+          break;
+        }
+        chaseState.apply(groupBuffer, 0, length);
+      }
+      return chaseState.encode();
+    }
+
+    @Override
+    public boolean advance() {
+      if (repeatGroup) {
+        repeatGroup = false;
+        return true;
+      }
+      length = 0;
+      if (error != null) {
+        return false;
+      }
+      try {
+        while (hasPendingEvent || cursor.next()) {
+          hasPendingEvent = false;
+          TrackCursor event = cursor.getEvent();
+          long t = cursor.getMicrosecond();
+          endTime = t; // Events arrive in time order.
+          if (event.isMeta()) continue;
+          if (length > 0 && t != time) {
+            hasPendingEvent = true;
+            break;
+          }
+          time = t;
+          int n = event.getMessageLength();
+          if (length + n > groupBuffer.length) {
+            byte[] newBuffer = new byte[Math.max(2 * groupBuffer.length, length + n)];
+            System.arraycopy(groupBuffer, 0, newBuffer, 0, length);
+            groupBuffer = newBuffer;
+          }
+          event.copyMessage(groupBuffer, length);
+          length += n;
+        }
+      } catch (InvalidMidiDataException e) {
+        Log.e(TAG, "Corrupt track data, ending song early", e);
+        error = e;
+      }
+      return length > 0;
+    }
 
-    private CompoundMidiEvent(long timeInMillies, byte[] midiBytes) {
-      this.timeInMillis = timeInMillies;
-      this.midiBytes = midiBytes;
+    @Override
+    public long getTime() {
+      return time;
     }
 
     @Override
-    public int compareTo(CompoundMidiEvent another) {
-      return (timeInMillis < another.timeInMillis) ? -1 : ((timeInMillis > another.timeInMillis)
-          ? 1
-          : 0);
+    public byte[] getBuffer() {
+      return groupBuffer;
+    }
+
+    @Override
+    public int getLength() {
+      return length;
+    }
+
+    @Override
+    public long getEndTime() {
+      return endTime;
     }
   }
 
   /**
-   * Duration of the entire song in milliseconds.
+   * Duration of the entire song in milliseconds, or -1 if unknown because the song is streamed.
    */
   public final long duration;
 
-  private final List<CompoundMidiEvent> events = new ArrayList<CompoundMidiEvent>();
+  private static final String TAG = "MidiSequence";
+  private static final int COMPILED_MAGIC = 0x4d534551; // 'MSEQ'
+  private static final int COMPILED_VERSION = 2;
+  private static final int COMPILED_HEADER_SIZE = 32;
+  private static final long START_DELAY_NANOS = 250000000L;
+  private static final long SPIN_NANOS = 500000L; // Spin for the last half millisecond.
+
+  private final EventSource source;
   private final MidiSequenceObserver observer;
+  private final LatenessStats latenessStats = new LatenessStats();
+  // The scheduler state is volatile since a hand-off sets up the next sequence on the scheduler
+  // thread of the previous one. Stopping and handing off synchronize on this sequence, so that
+  // exactly one of them takes effect at the end of the song.
   private volatile boolean isPlaying = false;
-  private Iterator<CompoundMidiEvent> eventIterator = null;
-  private HandlerThread handlerThread = null;
-  private RawByteReceiver receiver = null;
+  private volatile boolean inProgress = false; // True if playback is in progress or paused.
+  private volatile byte[] chaseMessages = null; // State to restore when resuming after a seek.
+  private volatile boolean resetPending = false; // True if the receiver is to be reset at time 0.
+  private volatile boolean preciseTiming = false;
+  private volatile double tempoFactor = 1.0;
+  private volatile HandlerThread handlerThread = null;
+  private volatile MidiRunnable midiRunnable = null;
+  private volatile PreciseScheduler preciseScheduler = null;
+  private volatile RawByteReceiver receiver = null;
+  private volatile MidiSequence next = null;
+  private volatile MidiSequence successor = null; // The sequence that took over at the end.
 
   /**
    * Creates a new sequencer object for a MIDI file.
    * 
-   * @param is input stream to read MIDI content from
+   * @param is input stream to read MIDI content from; it is read to the end but not closed, which
+   *        is up to the caller
    * @throws InvalidMidiDataException thrown if the file is invalid
    * @throws IOException thrown if the file can't be read
    */
   public MidiSequence(InputStream is, MidiSequenceObserver observer)
       throws InvalidMidiDataException, IOException {
     this.observer = observer;
-    MidiFileReader reader = new StandardMidiFileReader();
-    Sequence seq = reader.getSequence(is);
-    TempoCache tempoCache = new TempoCache(seq);
-    Map<Long, ByteArrayOutputStream> eventsBuilder = new HashMap<Long, ByteArrayOutputStream>();
-    long maxTime = 0;
-    for (Track track : seq.getTracks()) {
-      for (int i = 0; i < track.size(); i++) {
-        MidiEvent event = track.get(i);
-        MidiMessage message = event.getMessage();
-        if (!(message instanceof MetaMessage)) {
-          long time = (MidiUtils.tick2microsecond(seq, event.getTick(), tempoCache) + 500) / 1000;
-          if (time > maxTime) {
-            maxTime = time;
-          }
-          ByteArrayOutputStream baos = eventsBuilder.get(time);
-          if (baos == null) {
-            eventsBuilder.put(time, baos = new ByteArrayOutputStream());
-          }
-          baos.write(message.getMessage());
+    MidiFileCursor cursor = new MidiFileCursor(ByteBuffer.wrap(readFully(is)));
+
+    // The cursor delivers events in time order, so they only need to be grouped. The first pass
+    // sizes the arrays, and the second pass fills them.
+    int nGroups = 0;
+    int size = 0;
+    long time = -1;
+    long endTime = 0;
+    while (cursor.next()) {
+      endTime = cursor.getMicrosecond();
+      if (!cursor.getEvent().isMeta()) {
+        if (cursor.getMicrosecond() != time) {
+          time = cursor.getMicrosecond();
+          nGroups++;
         }
+        size += cursor.getEvent().getMessageLength();
+      }
+    }
+    long[] times = new long[nGroups];
+    int[] offsets = new int[nGroups + 1];
+    byte[] payload = new byte[size];
+    cursor.rewind();
+    for (int group = -1, position = 0; cursor.next();) {
+      TrackCursor event = cursor.getEvent();
+      if (!event.isMeta()) {
+        if (group < 0 || cursor.getMicrosecond() != times[group]) {
+          times[++group] = cursor.getMicrosecond();
+          offsets[group] = position;
+        }
+        event.copyMessage(payload, position);
+        position += event.getMessageLength();
+      }
+    }
+    offsets[nGroups] = size;
+    duration = (nGroups > 0) ? (times[nGroups - 1] + 500) / 1000 : 0;
+    source = new CompiledEventSource(LongBuffer.wrap(times), IntBuffer.wrap(offsets),
+        ByteBuffer.wrap(payload), endTime);
+  }
+
+  // Reads the remainder of the stream; the stream remains open.
+  static byte[] readFully(InputStream is) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = is.read(buffer)) > 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private MidiSequence(EventSource source, long duration, MidiSequenceObserver observer) {
+    this.source = source;
+    this.duration = duration;
+    this.observer = observer;
+  }
+
+  /**
+   * Creates a new sequencer object from a song in the compiled format written by
+   * {@link #writeCompiled}, typically a memory-mapped cache file. Playback reads directly from the
+   * buffer, so loading takes time proportional to the number of groups, for validation only.
+   * 
+   * @param buffer buffer holding the compiled song, from its position to its limit; must not be
+   *        modified while the sequence is in use
+   * @throws IOException thrown if the buffer does not hold a valid compiled song
+   */
+  static MidiSequence fromCompiled(ByteBuffer buffer, MidiSequenceObserver observer)
+      throws IOException {
+    ByteBuffer in = buffer.slice();
+    if (in.remaining() < COMPILED_HEADER_SIZE || in.getInt(0) != COMPILED_MAGIC
+        || in.getInt(4) != COMPILED_VERSION) {
+      throw new IOException("Not a compiled MIDI sequence");
+    }
+    int nGroups = in.getInt(8);
+    int size = in.getInt(12);
+    long duration = in.getLong(16);
+    long endTime = in.getLong(24);
+    if (nGroups < 0 || size < 0
+        || in.remaining() != COMPILED_HEADER_SIZE + 12L * nGroups + 4 + size) {
+      throw new IOException("Truncated compiled MIDI sequence");
+    }
+    in.position(COMPILED_HEADER_SIZE);
+    LongBuffer times = in.slice().asLongBuffer();
+    times.limit(nGroups);
+    in.position(COMPILED_HEADER_SIZE + 8 * nGroups);
+    IntBuffer offsets = in.slice().asIntBuffer();
+    offsets.limit(nGroups + 1);
+    in.position(COMPILED_HEADER_SIZE + 12 * nGroups + 4);
+    ByteBuffer payload = in.slice();
+
+    // Check the index so that a corrupt file can't derail playback.
+    if (offsets.get(0) != 0 || offsets.get(nGroups) != size) {
+      throw new IOException("Corrupt compiled MIDI sequence");
+    }
+    for (int i = 0; i < nGroups; i++) {
+      if (offsets.get(i + 1) < offsets.get(i) || times.get(i) < ((i > 0) ? times.get(i - 1) : 0)) {
+        throw new IOException("Corrupt compiled MIDI sequence");
       }
     }
-    duration = maxTime;
-    for (Entry<Long, ByteArrayOutputStream> entry : eventsBuilder.entrySet()) {
-      events
-          .add(new MidiSequence.CompoundMidiEvent(entry.getKey(), entry.getValue().toByteArray()));
+    if (nGroups > 0 && endTime < times.get(nGroups - 1)) {
+      throw new IOException("Corrupt compiled MIDI sequence");
     }
-    Collections.sort(events);
+    return new MidiSequence(new CompiledEventSource(times, offsets, payload, endTime), duration,
+        observer);
   }
 
+  /**
+   * Writes this song in the compiled format, i.e., the time-ordered event groups that playback
+   * works from, so that it can be reloaded with {@link #fromCompiled} without parsing the MIDI
+   * file again. All values are big-endian:
+   * 
+   * <pre>
+   * int magic ('MSEQ'), int version, int nGroups, int payloadSize, long duration, long endTime
+   * long[nGroups] times (microseconds)
+   * int[nGroups + 1] offsets (into the payload)
+   * byte[payloadSize] payload (MIDI bytes)
+   * </pre>
+   * 
+   * @throws IllegalStateException if the song is streamed
+   */
+  void writeCompiled(OutputStream os) throws IOException {
+    if (!(source instanceof CompiledEventSource)) {
+      throw new IllegalStateException("Streamed songs can't be compiled");
+    }
+    CompiledEventSource compiled = (CompiledEventSource) source;
+    DataOutputStream out = new DataOutputStream(os);
+    out.writeInt(COMPILED_MAGIC);
+    out.writeInt(COMPILED_VERSION);
+    out.writeInt(compiled.nGroups);
+    out.writeInt(compiled.offsets.get(compiled.nGroups));
+    out.writeLong(duration);
+    out.writeLong(compiled.endTime);
+    compiled.write(out);
+    out.flush();
+  }
+
+  /**
+   * Creates a new sequencer object that streams a MIDI file, i.e., it reads events as playback
+   * progresses rather than loading the entire file up front. This keeps memory usage proportional
+   * to the number of tracks, and playback starts right away, even for very long files. The
+   * duration of a streamed song is unknown. Since the track data is only checked as it is played,
+   * corrupt data ends a streamed song early; see {@link #getError}.
+   * 
+   * @param buffer buffer holding the MIDI file, typically a memory-mapped file; must not be
+   *        modified while the sequence is in use
+   * @throws InvalidMidiDataException thrown if the file header is invalid
+   */
+  public MidiSequence(ByteBuffer buffer, MidiSequenceObserver observer)
+      throws InvalidMidiDataException {
+    this.observer = observer;
+    duration = -1;
+    source = new StreamingEventSource(new MidiFileCursor(buffer));
+  }
+
+  /**
+   * Maps song time to nano time. When the tempo factor changes, the timeline is re-anchored at the
+   * current song position, so that the change takes effect right away, without a jump. Apart from
+   * that, deadlines are computed from a fixed origin, so that errors don't accumulate.
+   */
+  private class Timeline {
+    private long anchorTime; // Song time in microseconds.
+    private long anchorNanos;
+    private double factor;
+
+    private Timeline(long anchorTime, long anchorNanos) {
+      this.anchorTime = anchorTime;
+      this.anchorNanos = anchorNanos;
+      factor = tempoFactor;
+    }
+
+    private long getDeadline(long time) {
+      double f = tempoFactor;
+      if (f != factor) {
+        long now = System.nanoTime();
+        if (now > anchorNanos) {
+          anchorTime += (long) ((now - anchorNanos) * factor / 1000);
+          anchorNanos = now;
+        }
+        factor = f;
+      }
+      return anchorNanos + (long) ((time - anchorTime) * 1000 / factor);
+    }
+  }
+
+  /**
+   * Default scheduler; posts each group to a handler, with millisecond precision.
+   */
   private class MidiRunnable implements Runnable {
-    private byte[] buffer;
-    private CompoundMidiEvent currentEvent;
-    private final long t0;
     private final Handler handler;
+    private final Timeline timeline;
+    private boolean scheduled = false;
+    private long deadline;
 
-    private MidiRunnable() {
-      handler = new Handler(handlerThread.getLooper());
-      currentEvent = eventIterator.next();
-      t0 = SystemClock.uptimeMillis() - currentEvent.timeInMillis + 250;
+    private MidiRunnable(HandlerThread thread, Timeline timeline) {
+      this.timeline = timeline;
+      handler = new Handler(thread.getLooper());
     }
 
     private void scheduleNext() {
-      buffer = currentEvent.midiBytes;
-      handler.postAtTime(this, t0 + currentEvent.timeInMillis);
+      deadline = timeline.getDeadline(getDueTime());
+      long delayMillis = (deadline - System.nanoTime() + 500000) / 1000000;
+      handler.postAtTime(this, SystemClock.uptimeMillis() + delayMillis);
+      scheduled = true;
+    }
+
+    // Must be called on the handler thread.
+    private void reschedule() {
+      if (scheduled) {
+        handler.removeCallbacks(this);
+        scheduleNext();
+      }
     }
 
     @Override
     public void run() {
-      receiver.beginBlock();
-      receiver.onBytesReceived(buffer.length, buffer);
-      receiver.endBlock();
-      if (eventIterator.hasNext()) {
-        currentEvent = eventIterator.next();
+      scheduled = false;
+      if (dispatch(timeline, deadline)) {
         scheduleNext();
-      } else {
+      }
+    }
+  }
+
+  /**
+   * High-precision scheduler; a dedicated thread sleeps until shortly before each deadline and then
+   * spins until the deadline has been reached.
+   */
+  private class PreciseScheduler extends Thread {
+    private final Timeline timeline;
+    private volatile boolean stopped = false;
+    private long deadline;
+
+    private PreciseScheduler(Timeline timeline) {
+      super("MidiSequencer");
+      this.timeline = timeline;
+    }
+
+    @Override
+    public void run() {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+      do {
+        if (!waitUntilDue(timeline)) {
+          return;
+        }
+      } while (dispatch(timeline, deadline));
+    }
+
+    private boolean waitUntilDue(Timeline timeline) {
+      while (!stopped) {
+        // Recompute the deadline on every wakeup, in case the tempo factor has changed.
+        deadline = timeline.getDeadline(getDueTime());
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return true;
+        }
+        if (remaining > SPIN_NANOS) {
+          LockSupport.parkNanos(this, remaining - SPIN_NANOS);
+        }
+      }
+      return false;
+    }
+
+    private void quit() {
+      stopped = true;
+      LockSupport.unpark(this);
+    }
+  }
+
+  // Returns the song time of the next dispatch; after a hand-off, the reset of the receiver comes
+  // first, at the beginning of the song.
+  private long getDueTime() {
+    return resetPending ? 0 : source.getTime();
+  }
+
+  /**
+   * Sends the current group and advances to the next one. At the end of the song, the next
+   * sequence, if any, takes over, so that its beginning coincides with the end of this one.
+   * 
+   * @param deadline nano time at which the current group was due
+   * @return false if the end of the song has been reached
+   */
+  private boolean dispatch(Timeline timeline, long deadline) {
+    latenessStats.record(System.nanoTime() - deadline);
+    receiver.beginBlock();
+    if (resetPending) {
+      resetPending = false;
+      allNotesOff();
+      resetAllControllers();
+      if (source.getTime() > 0) {
+        receiver.endBlock();
+        return true;
+      }
+    }
+    receiver.onBytesReceived(source.getLength(), source.getBuffer());
+    receiver.endBlock();
+    if (source.advance()) {
+      return true;
+    }
+    synchronized (this) {
+      inProgress = false;
+      if (isPlaying) { // Otherwise, playback has been paused in the meantime; don't hand off.
         isPlaying = false;
-        observer.onPlaybackFinished(MidiSequence.this);
+        if (handlerThread != null) {
+          handlerThread.quit(); // Stops the looper once this message has been handled.
+        }
+        handlerThread = null;
+        midiRunnable = null;
+        preciseScheduler = null;
+        MidiSequence next = this.next;
+        if (next != null) {
+          next.preciseTiming = preciseTiming;
+          next.tempoFactor = tempoFactor;
+          next.startAt(receiver, timeline.getDeadline(source.getEndTime()));
+        }
+        successor = (next != null && next.isPlaying()) ? next : null; // Empty songs don't play.
       }
     }
+    observer.onPlaybackFinished(this);
+    return false;
+  }
+
+  /**
+   * @return the sequence that took over at the end of this one, or null if there was no hand-off
+   */
+  MidiSequence getSuccessor() {
+    return successor;
+  }
+
+  /**
+   * Queues a sequence to be played after this one, without a gap: When this sequence reaches the
+   * end of its last track, the next sequence starts from the beginning, with the same receiver,
+   * scheduler, and tempo factor. The observer of this sequence is notified after the hand-off, when
+   * the next sequence is already playing.
+   * 
+   * @param next sequence to play next, or null
+   */
+  public void setNext(MidiSequence next) {
+    this.next = next;
+  }
+
+  /**
+   * @return sequence to play after this one, or null
+   */
+  public MidiSequence getNext() {
+    return next;
+  }
+
+  /**
+   * Selects the scheduler for subsequent calls to start. The default scheduler has millisecond
+   * precision. The precise scheduler uses a dedicated thread with nanosecond timestamps; it spins
+   * for the last half millisecond before each event, trading CPU time for tighter timing.
+   */
+  public void setPreciseTiming(boolean preciseTiming) {
+    this.preciseTiming = preciseTiming;
+  }
+
+  /**
+   * Scales the playback speed, e.g., 0.5 for half speed or 2 for double speed. The new speed takes
+   * effect immediately, also during playback, without reloading or rebuilding the sequence. Times
+   * passed to {@link #seek(long)} and the duration remain in unscaled song time.
+   * 
+   * @param factor tempo factor, must be positive
+   */
+  public void setTempoFactor(double factor) {
+    if (!(factor > 0)) {
+      throw new IllegalArgumentException("Tempo factor must be positive: " + factor);
+    }
+    tempoFactor = factor;
+    final MidiRunnable runnable = midiRunnable;
+    if (runnable != null) {
+      runnable.handler.postAtFrontOfQueue(new Runnable() {
+        @Override
+        public void run() {
+          runnable.reschedule();
+        }
+      });
+    }
+    PreciseScheduler scheduler = preciseScheduler;
+    if (scheduler != null) {
+      LockSupport.unpark(scheduler);
+    }
+  }
+
+  /**
+   * @return current tempo factor
+   */
+  public double getTempoFactor() {
+    return tempoFactor;
+  }
+
+  /**
+   * @return lateness statistics of the scheduler, accumulated until reset
+   */
+  public LatenessStats getLatenessStats() {
+    return latenessStats;
   }
 
   /**
@@ -154,38 +763,121 @@ public class MidiSequence {
    * @param receiver to which MIDI bytes will be written
    */
   public void start(RawByteReceiver receiver) {
-    if (events.isEmpty()) {
-      observer.onPlaybackFinished(this);
-      return;
+    if (prepare(receiver, false)) {
+      schedule(new Timeline(source.getTime(), System.nanoTime() + START_DELAY_NANOS));
     }
-    pause();
+  }
+
+  // Starts from the beginning, so that song time zero falls on the given nano time. The receiver is
+  // reset at that time rather than right away, since the previous song may still be sounding.
+  private void startAt(RawByteReceiver receiver, long startNanos) {
+    stop();
+    inProgress = false;
+    chaseMessages = null;
+    if (prepare(receiver, true)) {
+      schedule(new Timeline(0, startNanos));
+    }
+  }
+
+  // Moves to the first group to be played and restores the state of the receiver, either right
+  // away or, if deferReset is true, in the first dispatch; returns false if there is nothing to
+  // play.
+  private boolean prepare(RawByteReceiver receiver, boolean deferReset) {
+    stop();
     this.receiver = receiver;
-    if (eventIterator == null || !eventIterator.hasNext()) {
+    if (!inProgress) {
+      source.rewind();
+      if (!source.advance()) {
+        observer.onPlaybackFinished(this);
+        return false;
+      }
+      resetPending = deferReset;
+      if (!deferReset) {
+        allNotesOff();
+        resetAllControllers();
+      }
+      inProgress = true;
+    } else if (chaseMessages != null) {
+      resetPending = false;
       allNotesOff();
       resetAllControllers();
-      eventIterator = events.iterator();
+      receiver.onBytesReceived(chaseMessages.length, chaseMessages);
     }
-    handlerThread = new HandlerThread("MidiSequencer", Process.THREAD_PRIORITY_AUDIO);
-    handlerThread.start();
+    chaseMessages = null;
+    return true;
+  }
+
+  private synchronized void schedule(Timeline timeline) {
     isPlaying = true;
-    MidiRunnable midiRunnable = new MidiRunnable();
-    midiRunnable.scheduleNext();
+    successor = null;
+    if (preciseTiming) {
+      preciseScheduler = new PreciseScheduler(timeline);
+      preciseScheduler.start();
+    } else {
+      HandlerThread thread = new HandlerThread("MidiSequencer", Process.THREAD_PRIORITY_AUDIO);
+      thread.start();
+      handlerThread = thread;
+      midiRunnable = new MidiRunnable(thread, timeline);
+      midiRunnable.scheduleNext();
+    }
+  }
+
+  /**
+   * Starts playback, delivering all MIDI messages that occur at the same time in one batch.
+   * 
+   * @param receiver to which packed MIDI messages will be written
+   */
+  public void start(PackedMidiReceiver receiver) {
+    start(new FromWireConverter(receiver));
   }
 
   /**
-   * Pauses playback.
+   * Pauses playback. If this sequence has already reached its end and handed off to the next one
+   * (see {@link #setNext}), the next one is paused instead, so that a pause isn't lost while the
+   * hand-off is under way. Does nothing if neither is playing.
    */
   public void pause() {
-    if (handlerThread == null) return;
-    handlerThread.quit();
+    if (!stop()) {
+      MidiSequence successor = this.successor;
+      if (successor != null) {
+        successor.pause();
+      }
+    }
+  }
+
+  // Stops the scheduler and silences the receiver; returns false if this sequence wasn't playing.
+  private boolean stop() {
+    Thread thread;
+    synchronized (this) {
+      if (!isPlaying) {
+        return false;
+      }
+      isPlaying = false;
+      if (handlerThread != null) {
+        handlerThread.quit();
+        thread = handlerThread;
+      } else {
+        preciseScheduler.quit();
+        thread = preciseScheduler;
+      }
+      handlerThread = null;
+      midiRunnable = null;
+      preciseScheduler = null;
+    }
+    // Joining outside the lock lets a scheduler thread at the end of the song find that playback
+    // has been stopped.
+    join(thread);
+    allNotesOff();
+    return true;
+  }
+
+  private static void join(Thread thread) {
+    if (thread == Thread.currentThread()) return; // Called from an observer.
     try {
-      handlerThread.join();
+      thread.join();
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt(); // Preserve interrupt flag in case the caller needs it.
     }
-    isPlaying = false;
-    handlerThread = null;
-    allNotesOff();
   }
 
   /**
@@ -193,13 +885,47 @@ public class MidiSequence {
    */
   public void rewind() {
     pause();
-    eventIterator = null;
+    inProgress = false;
+    chaseMessages = null;
+    resetPending = false;
+  }
+
+  /**
+   * Moves to the given time. If the sequence is playing, playback continues from there; otherwise,
+   * the next call to start will. Either way, controller, program, and pitch bend settings at the
+   * given time are restored before playback resumes. Seeking past the end of the song rewinds it.
+   * 
+   * @param timeMillis time in milliseconds
+   */
+  public void seek(long timeMillis) {
+    boolean wasPlaying = isPlaying;
+    stop();
+    chaseMessages = source.seek(Math.max(0, timeMillis) * 1000);
+    inProgress = source.advance();
+    if (!inProgress) {
+      chaseMessages = null;
+      if (wasPlaying) {
+        observer.onPlaybackFinished(this);
+      }
+    } else if (wasPlaying) {
+      start(receiver);
+    }
   }
 
   public boolean isPlaying() {
     return isPlaying;
   }
 
+  /**
+   * Returns the error that ended a streamed song early, so that observers can tell it apart from
+   * the regular end of the song. The error is cleared when the song is rewound.
+   * 
+   * @return the error, or null if there was none or the song is not streamed
+   */
+  public InvalidMidiDataException getError() {
+    return (source instanceof StreamingEventSource) ? ((StreamingEventSource) source).error : null;
+  }
+
   private void allNotesOff() {
     allChannels((byte) 0x7b, (byte) 0);
   }
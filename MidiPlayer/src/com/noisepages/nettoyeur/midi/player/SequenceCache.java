@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.player;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * On-disk cache of compiled songs (see {@link MidiSequence#writeCompiled}), so that reopening a
+ * song doesn't require parsing the MIDI file again. Cached songs are memory-mapped and played
+ * directly from the cache file. The cache evicts the least recently used songs when its total size
+ * exceeds a given budget; the order of use survives restarts through the modification times of the
+ * cache files.
+ *
+ * Keys are arbitrary strings that must change whenever the content of a song changes, such as a
+ * URI plus the modification time of the file, or a hash of its content.
+ *
+ * @author Peter Brinkmann
+ */
+public class SequenceCache {
+
+  private static final String SUFFIX = ".seq";
+
+  private final File directory;
+  private final Map<String, Long> entries; // File names and sizes, least recently used first.
+  private long maxSize;
+  private long totalSize = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param directory directory for the cache files; it is created if necessary, and it should not
+   *        be used for anything else
+   * @param maxSize size budget in bytes
+   */
+  public SequenceCache(File directory, long maxSize) {
+    this.directory = directory;
+    this.maxSize = maxSize;
+    entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    directory.mkdirs();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      Arrays.sort(files, new Comparator<File>() {
+        @Override
+        public int compare(File a, File b) {
+          long ta = a.lastModified();
+          long tb = b.lastModified();
+          return (ta < tb) ? -1 : (ta > tb) ? 1 : 0;
+        }
+      });
+      for (File file : files) {
+        if (file.getName().endsWith(SUFFIX)) {
+          entries.put(file.getName(), file.length());
+          totalSize += file.length();
+        } else {
+          file.delete(); // Leftovers from interrupted writes.
+        }
+      }
+    }
+    trim();
+  }
+
+  /**
+   * Sets the size budget, evicting songs if necessary.
+   *
+   * @param maxSize size budget in bytes
+   */
+  public synchronized void setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
+    trim();
+  }
+
+  /**
+   * @return size budget in bytes
+   */
+  public synchronized long getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return total size of all cached songs in bytes
+   */
+  public synchronized long getSize() {
+    return totalSize;
+  }
+
+  /**
+   * Loads a cached song.
+   *
+   * @param key key of the song
+   * @return the song, or null if it is not in the cache; corrupt cache files are evicted
+   */
+  public synchronized MidiSequence get(String key, MidiSequenceObserver observer) {
+    String name = fileName(key);
+    if (entries.get(name) == null) {
+      return null;
+    }
+    File file = new File(directory, name);
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        FileChannel channel = raf.getChannel();
+        // The mapping remains valid after the file is closed, or even evicted.
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        MidiSequence sequence = MidiSequence.fromCompiled(buffer, observer);
+        file.setLastModified(System.currentTimeMillis());
+        return sequence;
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      remove(name);
+      return null;
+    }
+  }
+
+  /**
+   * Adds a song to the cache, replacing any previous song with the same key, and evicts the least
+   * recently used songs if the cache exceeds its size budget. Streamed songs can't be cached.
+   *
+   * @param key key of the song
+   * @param sequence song that has been loaded completely
+   * @throws IOException if the cache file can't be written
+   */
+  public synchronized void put(String key, MidiSequence sequence) throws IOException {
+    String name = fileName(key);
+    File tmp = File.createTempFile("tmp", ".part", directory);
+    try {
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+      try {
+        sequence.writeCompiled(out);
+      } finally {
+        out.close();
+      }
+      remove(name);
+      // Readers never see partial files since the rename is atomic.
+      if (!tmp.renameTo(new File(directory, name))) {
+        throw new IOException("Can't rename " + tmp);
+      }
+    } finally {
+      tmp.delete();
+    }
+    long size = new File(directory, name).length();
+    entries.put(name, size);
+    totalSize += size;
+    trim();
+  }
+
+  /**
+   * Removes all songs from the cache.
+   */
+  public synchronized void clear() {
+    while (!entries.isEmpty()) {
+      remove(entries.keySet().iterator().next());
+    }
+  }
+
+  private void trim() {
+    Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+    while (totalSize > maxSize && it.hasNext()) {
+      Map.Entry<String, Long> entry = it.next();
+      new File(directory, entry.getKey()).delete();
+      totalSize -= entry.getValue();
+      it.remove();
+    }
+  }
+
+  private void remove(String name) {
+    Long size = entries.remove(name);
+    if (size != null) {
+      totalSize -= size;
+    }
+    new File(directory, name).delete();
+  }
+
+  /**
+   * Returns a key for a song based on its content, for songs whose modification time is unknown.
+   *
+   * @param content content of the MIDI file
+   */
+  public static String contentKey(byte[] content) {
+    return "sha1:" + hex(digest(content));
+  }
+
+  // Keys may contain any characters, so files are named after a hash of the key.
+  private static String fileName(String key) {
+    try {
+      return hex(digest(key.getBytes("UTF-8"))) + SUFFIX;
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] digest(byte[] data) {
+    try {
+      return MessageDigest.getInstance("SHA-1").digest(data);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0x0f, 16)).append(Character.forDigit(b & 0x0f, 16));
+    }
+    return sb.toString();
+  }
+}
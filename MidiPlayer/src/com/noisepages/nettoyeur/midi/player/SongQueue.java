@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.player;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Queue of songs to play after the current one. The first few songs in the queue are loaded in the
+ * background, and the first one that has been loaded is linked to the current song for a gapless
+ * hand-off (see {@link MidiSequence#setNext}). If a song isn't ready in time, it starts as soon as
+ * it has been loaded. Songs that fail to load are skipped, so that a bad file doesn't stop the rest
+ * of the queue.
+ *
+ * @param <K> type of the keys that identify songs, e.g., URIs
+ *
+ * @author Peter Brinkmann
+ */
+class SongQueue<K> {
+
+  /**
+   * Loads songs; called on the thread of the executor.
+   */
+  interface Loader<K> {
+    MidiSequence load(K key) throws Exception;
+  }
+
+  /**
+   * Callbacks for the player that owns the queue. They are invoked while the queue is locked, so
+   * that the player's idea of the current song can't get out of step with the queue; they must not
+   * wait for other threads that use the queue.
+   */
+  interface Listener<K> {
+
+    /**
+     * Handles a change of the current song.
+     *
+     * @param key key of the new song, or null if it has been removed from the queue already
+     * @param sequence the new song
+     * @param start true if the listener needs to start the song, false if it has taken over from
+     *        the previous one without a gap or has been set with {@link SongQueue#setCurrent}
+     */
+    void onSongChanged(K key, MidiSequence sequence, boolean start);
+
+    /**
+     * Handles the end of the queue, when a song has finished and no other song is left to play.
+     */
+    void onQueueFinished();
+  }
+
+  private static class Entry<K> {
+    private final K key;
+    private boolean submitted = false;
+    private volatile boolean loaded = false;
+    private volatile MidiSequence sequence = null;
+
+    private Entry(K key) {
+      this.key = key;
+    }
+
+    private boolean failed() {
+      return loaded && sequence == null;
+    }
+  }
+
+  static final int DEFAULT_PRELOAD_COUNT = 2;
+
+  private final Loader<K> loader;
+  private final Listener<K> listener;
+  private final Executor executor;
+  private final LinkedList<Entry<K>> entries = new LinkedList<Entry<K>>();
+  private volatile int preloadCount = DEFAULT_PRELOAD_COUNT;
+  private MidiSequence current = null;
+  private int generation = 0; // Counts calls to setCurrent, so that stale starts can be dropped.
+
+  /**
+   * Constructor.
+   *
+   * @param loader loads songs when they are needed
+   * @param listener is notified when the current song changes or the queue ends
+   * @param executor single-threaded executor for loading songs in the background
+   */
+  SongQueue(Loader<K> loader, Listener<K> listener, Executor executor) {
+    this.loader = loader;
+    this.listener = listener;
+    this.executor = executor;
+  }
+
+  /**
+   * Sets the current song, e.g., after the player has loaded a new song, and notifies the listener.
+   * Songs from the queue will play after this one, and a queued song that is still being loaded
+   * won't replace it.
+   */
+  void setCurrent(K key, MidiSequence sequence) {
+    synchronized (entries) {
+      if (current != null) {
+        current.setNext(null);
+      }
+      current = sequence;
+      generation++;
+      linkNext();
+      listener.onSongChanged(key, sequence, false);
+    }
+  }
+
+  /**
+   * Appends a song to the queue.
+   */
+  void enqueue(K key) {
+    synchronized (entries) {
+      entries.add(new Entry<K>(key));
+      preload();
+    }
+  }
+
+  /**
+   * @return the keys of the songs in the queue, in order
+   */
+  List<K> getKeys() {
+    synchronized (entries) {
+      List<K> keys = new ArrayList<K>();
+      for (Entry<K> entry : entries) {
+        keys.add(entry.key);
+      }
+      return keys;
+    }
+  }
+
+  /**
+   * Removes all songs from the queue; the current song keeps playing.
+   */
+  void clear() {
+    synchronized (entries) {
+      entries.clear();
+      linkNext();
+    }
+  }
+
+  /**
+   * Sets the number of songs in the queue to load ahead of time.
+   *
+   * @param preloadCount number of songs to preload, at least 1 for gapless playback
+   */
+  void setPreloadCount(int preloadCount) {
+    if (preloadCount < 0) {
+      throw new IllegalArgumentException("Negative preload count: " + preloadCount);
+    }
+    this.preloadCount = preloadCount;
+    synchronized (entries) {
+      preload();
+    }
+  }
+
+  int getPreloadCount() {
+    return preloadCount;
+  }
+
+  /**
+   * Moves on to the next song when the given song has finished; to be called from the observer of
+   * the sequences.
+   */
+  void onSequenceFinished(MidiSequence sequence) {
+    synchronized (entries) {
+      if (sequence != current) {
+        return;
+      }
+      MidiSequence next = sequence.getSuccessor();
+      if (next == null) {
+        if (!startNext()) {
+          listener.onQueueFinished();
+        }
+        return;
+      }
+      // The next song has taken over already; it only needs to become the current one, even if it
+      // has been paused since. Songs that failed to load have been skipped in the hand-off, so
+      // they are dropped as well.
+      K key = null;
+      for (Iterator<Entry<K>> it = entries.iterator(); it.hasNext();) {
+        Entry<K> entry = it.next();
+        if (entry.sequence == next) {
+          it.remove();
+          key = entry.key;
+          break;
+        }
+        if (!entry.failed()) {
+          break;
+        }
+        it.remove();
+      }
+      current = next;
+      preload();
+      linkNext();
+      listener.onSongChanged(key, next, false);
+    }
+  }
+
+  // Takes the next song off the queue and starts it once it has been loaded, or moves on to the
+  // song after that if it fails to load. Returns false if the queue is empty.
+  private boolean startNext() {
+    final Entry<K> entry = entries.poll();
+    if (entry == null) {
+      return false;
+    }
+    final int startGeneration = generation;
+    submit(entry);
+    // Runs after the entry has been loaded since the executor is single-threaded.
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (entries) {
+          if (generation != startGeneration) {
+            // The player has moved on to another song in the meantime; the entry goes back to the
+            // queue, to play after that song.
+            entries.addFirst(entry);
+            linkNext();
+          } else if (entry.sequence != null) {
+            current = entry.sequence;
+            linkNext();
+            listener.onSongChanged(entry.key, entry.sequence, true);
+          } else if (!startNext()) {
+            // The song failed to load, and there is no other song to try.
+            listener.onQueueFinished();
+          }
+        }
+      }
+    });
+    preload();
+    return true;
+  }
+
+  private void preload() {
+    int n = 0;
+    for (Entry<K> entry : entries) {
+      if (n++ >= preloadCount) {
+        break;
+      }
+      submit(entry);
+    }
+  }
+
+  private void submit(final Entry<K> entry) {
+    if (entry.submitted) {
+      return;
+    }
+    entry.submitted = true;
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          entry.sequence = loader.load(entry.key);
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+        entry.loaded = true;
+        synchronized (entries) {
+          linkNext();
+        }
+      }
+    });
+  }
+
+  // Links the first song in the queue that hasn't failed to load to the current song, for a
+  // gapless hand-off; if that song is still loading, there is no link until it has been loaded.
+  private void linkNext() {
+    if (current == null) {
+      return;
+    }
+    MidiSequence next = null;
+    for (Entry<K> entry : entries) {
+      if (!entry.failed()) {
+        next = entry.sequence;
+        break;
+      }
+    }
+    current.setNext(next);
+  }
+}